@@ -0,0 +1,54 @@
+#
+# Copyright (C) 2016 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+# JMH benchmarks for the calculator arithmetic, run on the host JVM, e.g.
+#   java -jar $ANDROID_HOST_OUT/framework/ExactCalculatorBenchmarks.jar -prof gc
+# Built with the test modules, so that compile errors show up in regular builds.  A quick
+# check that every benchmark still runs, without meaningful timings, is
+#   java -jar $ANDROID_HOST_OUT/framework/ExactCalculatorBenchmarks.jar -f 0 -wi 0 -i 1 -r 1ms
+
+LOCAL_PATH := $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := ExactCalculatorBenchmarks
+LOCAL_MODULE_TAGS := tests
+
+# Only the arithmetic classes, which do not depend on the Android framework.
+CALCULATOR_SRC := ../src/com/android/calculator2
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+LOCAL_SRC_FILES += \
+    $(CALCULATOR_SRC)/BoundedRational.java \
+    $(CALCULATOR_SRC)/ConstantCache.java \
+    $(CALCULATOR_SRC)/ConstantRegistry.java \
+    $(CALCULATOR_SRC)/DecimalConverter.java \
+    $(CALCULATOR_SRC)/EvaluationContext.java \
+    $(CALCULATOR_SRC)/EvaluationMetrics.java \
+    $(CALCULATOR_SRC)/EvaluationPool.java \
+    $(CALCULATOR_SRC)/Factorial.java \
+    $(CALCULATOR_SRC)/LinearCombination.java \
+    $(CALCULATOR_SRC)/StringUtils.java \
+    $(CALCULATOR_SRC)/UnifiedReal.java
+# The cr library is only built for the device; compile its sources for the host.
+LOCAL_SRC_FILES += $(call all-java-files-under, ../../../../external/crcalc/src)
+
+LOCAL_STATIC_JAVA_LIBRARIES := jmh-core
+LOCAL_ANNOTATION_PROCESSORS := jmh-generator-annprocess
+LOCAL_ANNOTATION_PROCESSOR_CLASSES := org.openjdk.jmh.generators.BenchmarkProcessor
+LOCAL_JAR_MANIFEST := manifest.txt
+
+include $(BUILD_HOST_JAVA_LIBRARY)
+
+include $(call all-makefiles-under,$(LOCAL_PATH))
@@ -0,0 +1,32 @@
+#
+# Copyright (C) 2016 The Android Open Source Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+# Expression corpus benchmark, run on the device against the installed calculator, e.g.
+#   adb install -r $OUT/data/app/ExactCalculatorCorpusBenchmark/ExactCalculatorCorpusBenchmark.apk
+#   adb shell am instrument -w \
+#       com.android.calculator2.benchmarks/com.android.calculator2.CorpusBenchmarkRunner
+
+LOCAL_PATH := $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_PACKAGE_NAME := ExactCalculatorCorpusBenchmark
+LOCAL_MODULE_TAGS := tests
+LOCAL_SDK_VERSION := current
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src)
+LOCAL_INSTRUMENTATION_FOR := ExactCalculator
+
+include $(BUILD_PACKAGE)
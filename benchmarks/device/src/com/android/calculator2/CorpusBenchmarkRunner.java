@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Process;
+
+import java.io.IOException;
+
+/**
+ * Runs ExpressionCorpusBenchmark in the calculator's process, with
+ *     adb shell am instrument -w [-e iterations N] \
+ *         com.android.calculator2.benchmarks/com.android.calculator2.CorpusBenchmarkRunner
+ * The results are both logged and reported as the instrumentation result.
+ */
+public class CorpusBenchmarkRunner extends Instrumentation {
+    private static final String ARG_ITERATIONS = "iterations";
+
+    private int mIterations = ExpressionCorpusBenchmark.DEFAULT_ITERATIONS;
+
+    @Override
+    public void onCreate(Bundle arguments) {
+        super.onCreate(arguments);
+        final String iterations = arguments == null ? null : arguments.getString(ARG_ITERATIONS);
+        if (iterations != null) {
+            mIterations = Math.max(Integer.parseInt(iterations), 1);
+        }
+        start();
+    }
+
+    @Override
+    public void onStart() {
+        final Bundle results = new Bundle();
+        // The corpus is parsed with the calculator's KeyMaps, and sized with its result view.
+        final Intent intent = new Intent(Intent.ACTION_MAIN);
+        intent.setClassName(getTargetContext(), Calculator.class.getName());
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        final Activity calculator = startActivitySync(intent);
+        final ExpressionCorpusBenchmark[] benchmark = new ExpressionCorpusBenchmark[1];
+        final IOException[] error = new IOException[1];
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    benchmark[0] = ExpressionCorpusBenchmark.load(getContext(),
+                            (CalculatorResult) calculator.findViewById(R.id.result),
+                            mIterations);
+                } catch (IOException e) {
+                    error[0] = e;
+                }
+            }
+        });
+        if (error[0] != null) {
+            calculator.finish();
+            results.putString(REPORT_KEY_STREAMRESULT,
+                    "Failed to read benchmark corpus: " + error[0] + "\n");
+            finish(Activity.RESULT_CANCELED, results);
+            return;
+        }
+        // Match the priority of evaluations in the calculator.
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        results.putString(REPORT_KEY_STREAMRESULT, benchmark[0].run());
+        calculator.finish();
+        finish(Activity.RESULT_OK, results);
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import android.content.Context;
+import android.os.Debug;
+import android.util.Log;
+import android.view.View;
+
+import com.hp.creals.CR;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Measures initial evaluation of a corpus of expressions, along the same path as
+ * Evaluator.AsyncEvaluator: cost estimate, eval(), size check, and initialResultFor(), i.e.
+ * decimal conversion, most significant digit search, and getPreferredPrec().  Reports p50 and
+ * p99 latency and the number of bytes allocated per evaluation for each expression.
+ * Allocations are counted for the benchmark thread only, so they exclude the UI thread, but
+ * also any work handed to the shared evaluation pool, e.g. by large factorials.
+ *
+ * The corpus is read from the benchmark APK's assets, one expression per line, in the syntax
+ * accepted for pasting.  Lines starting with '#' are comments.  '@' stands for the preceding
+ * expression, embedded as a pre-evaluated subexpression, so that chains of such expressions
+ * can be built.
+ *
+ * Run by CorpusBenchmarkRunner.
+ */
+class ExpressionCorpusBenchmark implements CalculatorExpr.ExprResolver {
+    private static final String TAG = "CalculatorBenchmark";
+    private static final String CORPUS_ASSET = "benchmark_corpus.txt";
+    private static final int WARMUP_ITERATIONS = 3;
+    static final int DEFAULT_ITERATIONS = 20;
+
+    // Corpus expressions and their source text.  The expression at list index i has
+    // expression index i + 1, so that it can be embedded in the next one.
+    private final ArrayList<CalculatorExpr> mExprs = new ArrayList<>();
+    private final ArrayList<String> mSources = new ArrayList<>();
+    // Values of embedded expressions.  Cleared before each evaluation.
+    private final ConcurrentHashMap<Long, UnifiedReal> mResults = new ConcurrentHashMap<>();
+    private final Evaluator.CharMetricsInfo mCharMetricsInfo;
+    private final int mIterations;
+
+    private ExpressionCorpusBenchmark(Evaluator.CharMetricsInfo cmi, int iterations) {
+        mCharMetricsInfo = cmi;
+        mIterations = iterations;
+    }
+
+    /**
+     * Read and parse the corpus from the assets of context.  Runs in UI thread, since KeyMaps
+     * requires that.
+     */
+    static ExpressionCorpusBenchmark load(Context context, Evaluator.CharMetricsInfo cmi,
+            int iterations) throws IOException {
+        final ExpressionCorpusBenchmark result = new ExpressionCorpusBenchmark(cmi, iterations);
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(context.getAssets().open(CORPUS_ASSET), "UTF-8"))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.charAt(0) == '#') {
+                    continue;
+                }
+                final CalculatorExpr expr = parse(line, result.mExprs.size());
+                if (expr == null) {
+                    Log.w(TAG, "Skipping unparseable corpus line: " + line);
+                    continue;
+                }
+                result.mExprs.add(expr);
+                result.mSources.add(line);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Convert s to an expression, as Calculator does for pasted text.  '@' refers to the
+     * expression with index previous.  Return null if s contains anything else we don't
+     * recognize.
+     */
+    private static CalculatorExpr parse(String s, long previous) {
+        final CalculatorExpr result = new CalculatorExpr();
+        final int len = s.length();
+        int current = 0;
+        while (current < len) {
+            final char c = s.charAt(current);
+            if (Character.isSpaceChar(c)) {
+                ++current;
+                continue;
+            }
+            if (c == '@') {
+                if (previous == 0) {
+                    return null;
+                }
+                result.append(result.abbreviate(previous, "@"));
+                ++current;
+                continue;
+            }
+            final int k = KeyMaps.keyForChar(c);
+            if (k != View.NO_ID) {
+                result.add(k);
+                current += Character.isSurrogate(c) ? 2 : 1;
+                continue;
+            }
+            final int f = KeyMaps.funForString(s, current);
+            if (f != View.NO_ID) {
+                result.add(f);
+                if (f == R.id.op_sqrt) {
+                    // Square root entered as function; don't lose the parenthesis.
+                    result.add(R.id.lparen);
+                }
+                current = s.indexOf('(', current) + 1;
+                continue;
+            }
+            return null;
+        }
+        return result;
+    }
+
+    @Override
+    public CalculatorExpr getExpr(long index) {
+        return mExprs.get((int) index - 1);
+    }
+
+    @Override
+    public boolean getDegreeMode(long index) {
+        return false;
+    }
+
+    @Override
+    public UnifiedReal getResult(long index) {
+        return mResults.get(index);
+    }
+
+    @Override
+    public UnifiedReal putResultIfAbsent(long index, UnifiedReal result) {
+        final UnifiedReal old = mResults.putIfAbsent(index, result);
+        return old == null ? result : old;
+    }
+
+    /**
+     * Evaluate expr as AsyncEvaluator would for a required result with a long timeout.
+     * Return a short description of the outcome.
+     */
+    private String evaluate(CalculatorExpr expr) {
+        mResults.clear();
+        final long budget = Evaluator.getWorkBudget(true);
+        final int maxBits = Evaluator.getMaxResultBits(true);
+        final EvaluationContext context = new EvaluationContext(budget);
+        final EvaluationContext previousContext = context.attach();
+        try {
+            final CalculatorExpr.CostEstimate cost = expr.estimateCost(this);
+            if (cost.minResultLog2 > maxBits + 4 || cost.factorialWork > budget) {
+                return "timeout (estimate)";
+            }
+            final long maxExactPowBits = cost.exactPowWork > budget
+                    ? CalculatorExpr.maxExactPowBits(budget) : Long.MAX_VALUE;
+            final UnifiedReal res = expr.eval(false, this, maxExactPowBits);
+            if (res.approxWholeNumberBitsGreaterThan(maxBits)) {
+                return "timeout (too big)";
+            }
+            Evaluator.initialResultFor(res, mCharMetricsInfo);
+            return "ok";
+        } catch (CalculatorExpr.SyntaxException e) {
+            return "syntax error";
+        } catch (UnifiedReal.ZeroDivisionException e) {
+            return "zero divide";
+        } catch (ArithmeticException e) {
+            return "nan";
+        } catch (CR.PrecisionOverflowException e) {
+            return "overflow";
+        } catch (EvaluationContext.BudgetExceededException e) {
+            return "timeout (budget)";
+        } catch (CR.AbortedException e) {
+            return "aborted";
+        } catch (StackOverflowError e) {
+            return "timeout (stack overflow)";
+        } finally {
+            context.detach(previousContext);
+        }
+    }
+
+
+    /**
+     * Return the q quantile of the sorted array a.
+     */
+    private static long percentile(long[] a, double q) {
+        final int i = (int) Math.ceil(q * a.length) - 1;
+        return a[Math.max(0, Math.min(i, a.length - 1))];
+    }
+
+    /**
+     * Log line, and append it to report.
+     */
+    private static void report(StringBuilder report, String line) {
+        Log.i(TAG, line);
+        report.append(line).append('\n');
+    }
+
+    /**
+     * Run the benchmark on the calling thread.  Return the results, which are also logged.
+     */
+    @SuppressWarnings("deprecation")  // Thread allocation counting is still supported.
+    String run() {
+        final StringBuilder result = new StringBuilder();
+        report(result, "Running " + mExprs.size() + " expressions, " + mIterations
+                + " iterations");
+        final long[] times = new long[mIterations];
+        long totalNanos = 0;
+        Debug.startAllocCounting();
+        try {
+            for (int i = 0; i < mExprs.size(); ++i) {
+                final CalculatorExpr expr = mExprs.get(i);
+                String outcome = null;
+                for (int j = 0; j < WARMUP_ITERATIONS; ++j) {
+                    outcome = evaluate(expr);
+                }
+                Debug.resetThreadAllocSize();
+                for (int j = 0; j < mIterations; ++j) {
+                    final long start = System.nanoTime();
+                    evaluate(expr);
+                    times[j] = System.nanoTime() - start;
+                    totalNanos += times[j];
+                }
+                // An int, so it may wrap for huge results.  Treat it as unsigned.
+                final long allocated = Debug.getThreadAllocSize() & 0xffffffffL;
+                Arrays.sort(times);
+                report(result, String.format(Locale.US,
+                        "p50=%9.3fms p99=%9.3fms alloc=%6dKB %-18s %s",
+                        percentile(times, 0.5) / 1.0e6, percentile(times, 0.99) / 1.0e6,
+                        allocated / mIterations / 1024, outcome,
+                        abbreviateSource(mSources.get(i))));
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        report(result, String.format(Locale.US, "Total %.1fms", totalNanos / 1.0e6));
+        return result.toString();
+    }
+
+    private static String abbreviateSource(String s) {
+        return s.length() <= 60 ? s : s.substring(0, 57) + KeyMaps.ELLIPSIS;
+    }
+}
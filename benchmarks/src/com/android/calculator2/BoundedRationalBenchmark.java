@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks for BoundedRational arithmetic, for operands of up to MAX_SIZE / 2 bits, so
+ * that sums, products and powers still fit in MAX_SIZE bits rather than timing the null
+ * returned for oversized results.
+ *
+ * "random" operands have random numerators and denominators, which are nearly always
+ * relatively prime.  "adversarial" operands are unreduced, with a large common factor, a
+ * Fibonacci number in the numerator to maximize the number of gcd steps, and a denominator
+ * that is otherwise a product of powers of 2 and 5, so that the decimal expansion terminates
+ * only after many digits.
+ *
+ * Runs on the host JVM.  To include allocation rates, run e.g.
+ *
+ *     java -jar ExactCalculatorBenchmarks.jar BoundedRationalBenchmark -prof gc
+ *
+ * A single untimed pass, which only checks that every benchmark runs, is
+ *
+ *     java -jar ExactCalculatorBenchmarks.jar BoundedRationalBenchmark -f 0 -wi 0 -i 1 -r 1ms
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BoundedRationalBenchmark {
+
+    // Total size of each operand's numerator and denominator, in bits.
+    @Param({"64", "256", "1024", "4096", "5000"})
+    public int bits;
+
+    @Param({"random", "adversarial"})
+    public String inputs;
+
+    // Evaluator.INIT_PREC, the precision used for initial evaluation.
+    private static final int INIT_PREC = 50;
+
+    private BoundedRational mA;
+    private BoundedRational mB;
+    private BigInteger mExp;  // Exponent that keeps mA.pow(mExp) near MAX_SIZE bits.
+
+    /**
+     * Return the smallest Fibonacci number with at least the given number of bits.
+     */
+    private static BigInteger fibonacci(int bits) {
+        BigInteger a = BigInteger.ONE;
+        BigInteger b = BigInteger.ONE;
+        while (b.bitLength() < bits) {
+            final BigInteger next = a.add(b);
+            a = b;
+            b = next;
+        }
+        return b;
+    }
+
+    private static BigInteger randomBits(int bits, Random rng) {
+        return new BigInteger(Math.max(bits, 1), rng).setBit(Math.max(bits, 1) - 1);
+    }
+
+    private BoundedRational makeOperand(Random rng, int variant) {
+        final int half = bits / 2;
+        if (inputs.equals("random")) {
+            return new BoundedRational(randomBits(half, rng), randomBits(bits - half, rng));
+        }
+        final int quarter = bits / 4;
+        final BigInteger common = randomBits(quarter, rng);
+        final BigInteger num = common.multiply(fibonacci(half - quarter + variant));
+        // 2^p * 5^q, with each factor roughly bits/8 bits long.
+        final int p = Math.max(bits / 8, 1);
+        final int q = Math.max((int) (bits / 8 / 2.3219), 1);
+        final BigInteger den = common.multiply(BigInteger.valueOf(5).pow(q).shiftLeft(p));
+        return new BoundedRational(num, den);
+    }
+
+    @Setup
+    public void setUp() {
+        final Random rng = new Random(bits);
+        mA = makeOperand(rng, 0);
+        mB = makeOperand(rng, 1);
+        mExp = BigInteger.valueOf(Math.max(BoundedRational.MAX_SIZE / bits, 2));
+        if (add() == null || multiply() == null || pow() == null) {
+            throw new IllegalStateException("Operands too large for MAX_SIZE: " + bits);
+        }
+    }
+
+    @Benchmark
+    public BoundedRational add() {
+        return BoundedRational.add(mA, mB);
+    }
+
+    @Benchmark
+    public BoundedRational multiply() {
+        return BoundedRational.multiply(mA, mB);
+    }
+
+    @Benchmark
+    public BoundedRational reduce() {
+        return mA.reduce();
+    }
+
+    /**
+     * maybeReduce() for a result no bigger than the operands were when last reduced, which
+     * only removes small common factors.
+     */
+    @Benchmark
+    public BoundedRational maybeReduceSameSize() {
+        return BoundedRational.maybeReduce(mA, mA.representationBits());
+    }
+
+    /**
+     * maybeReduce() for a result that has grown by a factor of four since its operands were
+     * last reduced, which fully reduces unless the result is small.
+     */
+    @Benchmark
+    public BoundedRational maybeReduceGrown() {
+        return BoundedRational.maybeReduce(mA, mA.representationBits() / 4);
+    }
+
+    @Benchmark
+    public BoundedRational pow() {
+        return mA.pow(mExp);
+    }
+
+    @Benchmark
+    public int digitsRequired() {
+        return BoundedRational.digitsRequired(mA);
+    }
+
+    @Benchmark
+    public String toStringTruncatedInitPrec() {
+        return mA.toStringTruncated(INIT_PREC);
+    }
+
+    @Benchmark
+    public String toStringTruncatedMaxSize() {
+        return mA.toStringTruncated(BoundedRational.MAX_SIZE);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks for UnifiedReal functions, at the precisions at which results are converted
+ * to decimal.
+ *
+ * build() measures only the construction of the result, i.e. the symbolic checks and the CR
+ * expression graph.  evaluate() also converts the result with toStringTruncated(), which is
+ * where CR does the actual approximation work.  CR caches approximations, so each invocation
+ * builds a fresh result from a rational argument.
+ *
+ * But pi, e, and the square roots and logs interned by ConstantRegistry are shared, and their
+ * approximations stay cached in ConstantCache and in the CRs themselves, as in the calculator.
+ * Thus evaluate() measures warm costs.  For "sqrt", "sinPiTwelfths", "asinHalves" and
+ * "getIntLog", whose results are rational multiples or sums of such constants, that is little
+ * more than a cache hit.  evaluateCold() measures the first evaluation in a fresh JVM, before
+ * any constant has been approximated.  That also includes class loading and interpreted
+ * execution, as does the first evaluation after the calculator starts.  No ConstantCache file
+ * is set, so persisted digits are never used.
+ *
+ * The "sinPiTwelfths", "asinHalves" and "getIntLog" functions use arguments for which
+ * sin(), asin() and ln() take those symbolic shortcuts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class UnifiedRealBenchmark {
+
+    @Param({"sin", "cos", "tan", "asin", "atan", "ln", "exp", "sqrt", "pow", "fact",
+            "sinPiTwelfths", "asinHalves", "getIntLog"})
+    public String function;
+
+    // Digits to the right of the decimal point: a typical display, Evaluator.INIT_PREC,
+    // Evaluator.MAX_MSD_PREC_OFFSET, and a deep scroll.
+    @Param({"20", "50", "1100", "10000"})
+    public int digits;
+
+    private static final UnifiedReal SEVEN_TENTHS = new UnifiedReal(new BoundedRational(7, 10));
+    private static final UnifiedReal THREE_TENTHS = new UnifiedReal(new BoundedRational(3, 10));
+    private static final UnifiedReal FIVE_TWELFTHS =
+            new UnifiedReal(new BoundedRational(5, 12));
+    private static final UnifiedReal MILLION = new UnifiedReal(1000000);
+    private static final UnifiedReal THOUSAND = new UnifiedReal(1000);
+
+    private int mFunction;
+
+    @Setup
+    public void setUp() {
+        switch (function) {
+            case "sin": mFunction = 0; break;
+            case "cos": mFunction = 1; break;
+            case "tan": mFunction = 2; break;
+            case "asin": mFunction = 3; break;
+            case "atan": mFunction = 4; break;
+            case "ln": mFunction = 5; break;
+            case "exp": mFunction = 6; break;
+            case "sqrt": mFunction = 7; break;
+            case "pow": mFunction = 8; break;
+            case "fact": mFunction = 9; break;
+            case "sinPiTwelfths": mFunction = 10; break;
+            case "asinHalves": mFunction = 11; break;
+            case "getIntLog": mFunction = 12; break;
+            default: throw new AssertionError("Unknown function " + function);
+        }
+    }
+
+    private UnifiedReal compute() {
+        switch (mFunction) {
+            case 0: return SEVEN_TENTHS.sin();
+            case 1: return SEVEN_TENTHS.cos();
+            case 2: return SEVEN_TENTHS.tan();
+            case 3: return THREE_TENTHS.asin();
+            case 4: return SEVEN_TENTHS.atan();
+            case 5: return SEVEN_TENTHS.ln();
+            case 6: return SEVEN_TENTHS.exp();
+            case 7: return UnifiedReal.TWO.sqrt();
+            case 8: return UnifiedReal.TWO.pow(SEVEN_TENTHS);
+            case 9: return THOUSAND.fact();
+            // sin(5 pi / 12) = (sqrt(6) + sqrt(2)) / 4.
+            case 10: return UnifiedReal.PI.multiply(FIVE_TWELFTHS).sin();
+            // asin(1/2) = pi / 6.
+            case 11: return UnifiedReal.HALF.asin();
+            // ln(10^6) = 6 ln(10).
+            case 12: return MILLION.ln();
+            default: throw new AssertionError();
+        }
+    }
+
+    @Benchmark
+    public UnifiedReal build() {
+        return compute();
+    }
+
+    @Benchmark
+    public String evaluate() {
+        return compute().toStringTruncated(digits);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    @Fork(10)
+    public String evaluateCold() {
+        return compute().toStringTruncated(digits);
+    }
+}
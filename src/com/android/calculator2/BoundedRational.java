@@ -19,7 +19,6 @@ package com.android.calculator2;
 import com.hp.creals.CR;
 
 import java.math.BigInteger;
-import java.util.Random;
 
 /**
  * Rational numbers that may turn to null if they get too big.
@@ -36,29 +35,121 @@ public class BoundedRational {
     // much faster.
     // TODO: Maybe eventually make this extend Number?
 
-    private static final int MAX_SIZE = 10000; // total, in bits
+    static final int MAX_SIZE = 10000; // total, in bits
 
+    // Nearly all values that users type, and many results, have a numerator and denominator
+    // that fit in a long.  We represent those as mSmallNum / mSmallDen, with mNum and mDen null,
+    // and use long arithmetic until it overflows.  Otherwise the value is mNum / mDen, and the
+    // long fields are unused.  The small representation never uses Long.MIN_VALUE, so that
+    // negation and abs() cannot overflow.
     private final BigInteger mNum;
     private final BigInteger mDen;
+    private final long mSmallNum;
+    private final long mSmallDen;
+    // The representationBits() of the most recent fully reduced value from which this was
+    // computed by arithmetic, or 0 if that's this value itself, e.g. because it was constructed
+    // directly.  See maybeReduce().
+    private final int mBaselineBits;
 
     public BoundedRational(BigInteger n, BigInteger d) {
-        mNum = n;
-        mDen = d;
+        this(n, d, 0);
+    }
+
+    private BoundedRational(BigInteger n, BigInteger d, int baselineBits) {
+        if (n.bitLength() < Long.SIZE - 1 && d.bitLength() < Long.SIZE - 1) {
+            mNum = mDen = null;
+            mSmallNum = n.longValue();
+            mSmallDen = d.longValue();
+        } else {
+            mNum = n;
+            mDen = d;
+            mSmallNum = mSmallDen = 0;
+        }
+        mBaselineBits = baselineBits;
     }
 
     public BoundedRational(BigInteger n) {
-        mNum = n;
-        mDen = BigInteger.ONE;
+        this(n, BigInteger.ONE);
     }
 
     public BoundedRational(long n, long d) {
-        mNum = BigInteger.valueOf(n);
-        mDen = BigInteger.valueOf(d);
+        if (n != Long.MIN_VALUE && d != Long.MIN_VALUE) {
+            mNum = mDen = null;
+            mSmallNum = n;
+            mSmallDen = d;
+        } else {
+            mNum = BigInteger.valueOf(n);
+            mDen = BigInteger.valueOf(d);
+            mSmallNum = mSmallDen = 0;
+        }
+        mBaselineBits = 0;
     }
 
     public BoundedRational(long n) {
-        mNum = BigInteger.valueOf(n);
-        mDen = BigInteger.valueOf(1);
+        this(n, 1);
+    }
+
+    private boolean isSmall() {
+        return mNum == null;
+    }
+
+    // Numerator and denominator as BigIntegers, for the operations we only implement on
+    // BigIntegers.  Allocates for the small representation.
+    private BigInteger bigNum() {
+        return mNum == null ? BigInteger.valueOf(mSmallNum) : mNum;
+    }
+
+    private BigInteger bigDen() {
+        return mNum == null ? BigInteger.valueOf(mSmallDen) : mDen;
+    }
+
+    private boolean denIsOne() {
+        return mNum == null ? mSmallDen == 1 : mDen.equals(BigInteger.ONE);
+    }
+
+    /**
+     * Return n.bitLength() for the BigInteger n with the same value.
+     */
+    private static int bitLength(long n) {
+        return Long.SIZE - Long.numberOfLeadingZeros(n < 0 ? ~n : n);
+    }
+
+    private int numBitLength() {
+        return mNum == null ? bitLength(mSmallNum) : mNum.bitLength();
+    }
+
+    private int denBitLength() {
+        return mNum == null ? bitLength(mSmallDen) : mDen.bitLength();
+    }
+
+    // Result of the following checked operations on overflow.  Conveniently also excluded from
+    // the small representation.
+    private static final long OVERFLOW = Long.MIN_VALUE;
+
+    /**
+     * Return a * b, or OVERFLOW if that doesn't fit in a long.  Neither argument may be OVERFLOW.
+     */
+    private static long checkedMultiply(long a, long b) {
+        final long result = a * b;
+        if (((Math.abs(a) | Math.abs(b)) >>> 31) != 0 && b != 0 && result / b != a) {
+            return OVERFLOW;
+        }
+        return result;
+    }
+
+    /**
+     * Return a + b, or OVERFLOW if that doesn't fit in a long.  Either argument may be OVERFLOW,
+     * in which case so is the result.
+     */
+    private static long checkedAdd(long a, long b) {
+        if (a == OVERFLOW || b == OVERFLOW) {
+            return OVERFLOW;
+        }
+        final long result = a + b;
+        if (((a ^ result) & (b ^ result)) < 0) {
+            return OVERFLOW;
+        }
+        return result;
     }
 
     /**
@@ -66,6 +157,9 @@ public class BoundedRational {
      * Debug or log messages only, not pretty.
      */
     public String toString() {
+        if (isSmall()) {
+            return mSmallNum + "/" + mSmallDen;
+        }
         return mNum.toString() + "/" + mDen.toString();
     }
 
@@ -76,9 +170,9 @@ public class BoundedRational {
      */
     public String toNiceString() {
         final BoundedRational nicer = reduce().positiveDen();
-        String result = nicer.mNum.toString();
-        if (!nicer.mDen.equals(BigInteger.ONE)) {
-            result += "/" + nicer.mDen;
+        String result = DecimalConverter.toString(nicer.bigNum());
+        if (!nicer.denIsOne()) {
+            result += "/" + DecimalConverter.toString(nicer.bigDen());
         }
         return result;
     }
@@ -96,14 +190,9 @@ public class BoundedRational {
      * @param n result precision, >= 0
      */
     public String toStringTruncated(int n) {
-        String digits = mNum.abs().multiply(BigInteger.TEN.pow(n)).divide(mDen.abs()).toString();
-        int len = digits.length();
-        if (len < n + 1) {
-            digits = StringUtils.repeat('0', n + 1 - len) + digits;
-            len = n + 1;
-        }
-        return (signum() < 0 ? "-" : "") + digits.substring(0, len - n) + "."
-                + digits.substring(len - n);
+        final BigInteger scaled =
+                bigNum().abs().multiply(DecimalConverter.pow10(n)).divide(bigDen().abs());
+        return DecimalConverter.toStringScaled(scaled, signum() < 0, n);
     }
 
     /**
@@ -113,33 +202,55 @@ public class BoundedRational {
      * TODO: This should always be correctly rounded.
      */
     public double doubleValue() {
+        if (isSmall()) {
+            return (double) mSmallNum / (double) mSmallDen;
+        }
         return mNum.doubleValue() / mDen.doubleValue();
     }
 
     public CR crValue() {
+        if (isSmall()) {
+            return CR.valueOf(mSmallNum).divide(CR.valueOf(mSmallDen));
+        }
         return CR.valueOf(mNum).divide(CR.valueOf(mDen));
     }
 
     public int intValue() {
         BoundedRational reduced = reduce();
-        if (!reduced.mDen.equals(BigInteger.ONE)) {
+        if (!reduced.denIsOne()) {
             throw new ArithmeticException("intValue of non-int");
         }
-        return reduced.mNum.intValue();
+        return reduced.isSmall() ? (int) reduced.mSmallNum : reduced.mNum.intValue();
     }
 
     // Approximate number of bits to left of binary point.
     // Negative indicates leading zeroes to the right of binary point.
     public int wholeNumberBits() {
-        if (mNum.signum() == 0) {
+        if (signum() == 0) {
             return Integer.MIN_VALUE;
         } else {
-            return mNum.bitLength() - mDen.bitLength();
+            return numBitLength() - denBitLength();
         }
     }
 
+    /**
+     * Return the total number of bits in numerator and denominator.
+     * An upper bound on the size of the reduced representation.
+     */
+    public int representationBits() {
+        return numBitLength() + denBitLength();
+    }
+
+    /**
+     * Return the representationBits() this had when it, or the value it was computed from, was
+     * last fully reduced.
+     */
+    private int baselineBits() {
+        return mBaselineBits == 0 ? representationBits() : mBaselineBits;
+    }
+
     private boolean tooBig() {
-        if (mDen.equals(BigInteger.ONE)) {
+        if (isSmall() || mDen.equals(BigInteger.ONE)) {
             return false;
         }
         return (mNum.bitLength() + mDen.bitLength() > MAX_SIZE);
@@ -149,35 +260,129 @@ public class BoundedRational {
      * Return an equivalent fraction with a positive denominator.
      */
     private BoundedRational positiveDen() {
+        if (isSmall()) {
+            return mSmallDen > 0 ? this : new BoundedRational(-mSmallNum, -mSmallDen);
+        }
         if (mDen.signum() > 0) {
             return this;
         }
         return new BoundedRational(mNum.negate(), mDen.negate());
     }
 
+    /**
+     * Return the greatest common divisor of a and b, neither of which is Long.MIN_VALUE.
+     * Nonnegative, as for BigInteger.gcd().
+     */
+    private static long gcd(long a, long b) {
+        a = Math.abs(a);
+        b = Math.abs(b);
+        while (b != 0) {
+            final long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
     /**
      * Return an equivalent fraction in lowest terms.
      * Denominator sign may remain negative.
      */
-    private BoundedRational reduce() {
-        if (mDen.equals(BigInteger.ONE)) {
+    BoundedRational reduce() {
+        if (denIsOne()) {
             return this;  // Optimization only
         }
+        if (isSmall()) {
+            final long divisor = gcd(mSmallNum, mSmallDen);
+            if (divisor == 1) {
+                return this;
+            }
+            return new BoundedRational(mSmallNum / divisor, mSmallDen / divisor);
+        }
         final BigInteger divisor = mNum.gcd(mDen);
         return new BoundedRational(mNum.divide(divisor), mDen.divide(divisor));
     }
 
-    static Random sReduceRng = new Random();
+    /**
+     * Return an equivalent fraction with common factors of two removed.  The first step of a
+     * binary gcd computation; linear time, and much cheaper than reduce().
+     */
+    private BoundedRational removeCommonTwos() {
+        if (signum() == 0) {
+            return this;
+        }
+        if (isSmall()) {
+            final int shift = Math.min(Long.numberOfTrailingZeros(mSmallNum),
+                    Long.numberOfTrailingZeros(mSmallDen));
+            return shift == 0 ? this : new BoundedRational(mSmallNum >> shift, mSmallDen >> shift);
+        }
+        final int shift = Math.min(mNum.getLowestSetBit(), mDen.getLowestSetBit());
+        return shift == 0 ? this
+                : new BoundedRational(mNum.shiftRight(shift), mDen.shiftRight(shift));
+    }
+
+    // Product of the odd primes through 47, the largest such product that fits in a long.
+    private static final long SMALL_ODD_PRIMES = 307444891294245705L;
+    private static final BigInteger BIG_SMALL_ODD_PRIMES = BigInteger.valueOf(SMALL_ODD_PRIMES);
+    // Maximum number of times removeSmallCommonFactors() divides out common small primes.
+    private static final int MAX_SMALL_FACTOR_STEPS = 4;
+
+    /**
+     * Return an equivalent fraction with common factors of two removed, and some common factors
+     * of small odd primes.  A cheap partial gcd computation: Each step takes time linear in the
+     * size of the numbers, unlike reduce().  This catches the common factors most often
+     * introduced by decimal inputs and small integer operands.  Any others are left for the
+     * next full reduction.
+     */
+    private BoundedRational removeSmallCommonFactors() {
+        final BoundedRational r = removeCommonTwos();
+        if (r.isSmall() || r.signum() == 0) {
+            return r;
+        }
+        BigInteger num = r.mNum;
+        BigInteger den = r.mDen;
+        for (int i = 0; i < MAX_SMALL_FACTOR_STEPS; ++i) {
+            // The common divisors of num, den, and SMALL_ODD_PRIMES.
+            final long divisor = gcd(gcd(num.mod(BIG_SMALL_ODD_PRIMES).longValue(),
+                    SMALL_ODD_PRIMES), den.mod(BIG_SMALL_ODD_PRIMES).longValue());
+            if (divisor == 1) {
+                break;
+            }
+            final BigInteger bigDivisor = BigInteger.valueOf(divisor);
+            num = num.divide(bigDivisor);
+            den = den.divide(bigDivisor);
+        }
+        return num == r.mNum ? r : new BoundedRational(num, den);
+    }
+
+    // Results no bigger than this, in representationBits(), are not fully reduced by
+    // maybeReduce() unless tooBig().  In particular, we rarely reduce the small representation.
+    private static final int REDUCE_MIN_BITS = 64;
+    // maybeReduce() fully reduces results that have grown by this factor since the last full
+    // reduction.
+    private static final int REDUCE_GROWTH = 4;
 
     /**
      * Return a possibly reduced version of r that's not tooBig().
      * Return null if none exists.
+     * r is the unreduced result of an operation, and baselineBits is the larger baselineBits()
+     * of its operands.  We fully reduce r if it is too big, or if it has grown by REDUCE_GROWTH
+     * since the last full reduction along the chain of operations that produced it.  Otherwise
+     * we only remove small common factors, in linear time.  Thus a value is fully reduced only
+     * after several operations have grown it, rather than after each operation on large
+     * operands of similar size, as when repeatedly squaring.  And the outcome does not depend on
+     * chance.
      */
-    private static BoundedRational maybeReduce(BoundedRational r) {
+    static BoundedRational maybeReduce(BoundedRational r, int baselineBits) {
         if (r == null) return null;
-        // Reduce randomly, with 1/16 probability, or if the result is too big.
-        if (!r.tooBig() && (sReduceRng.nextInt() & 0xf) != 0) {
-            return r;
+        final int bits = r.representationBits();
+        if (!r.tooBig() && bits <= REDUCE_MIN_BITS) {
+            return r.removeCommonTwos();
+        }
+        if (!r.tooBig() && bits < (long) REDUCE_GROWTH * baselineBits) {
+            final BoundedRational partial = r.removeSmallCommonFactors();
+            return partial.isSmall() ? partial
+                    : new BoundedRational(partial.mNum, partial.mDen, baselineBits);
         }
         BoundedRational result = r.positiveDen();
         result = result.reduce();
@@ -190,11 +395,22 @@ public class BoundedRational {
     public int compareTo(BoundedRational r) {
         // Compare by multiplying both sides by denominators, invert result if denominator product
         // was negative.
-        return mNum.multiply(r.mDen).compareTo(r.mNum.multiply(mDen)) * mDen.signum()
-                * r.mDen.signum();
+        if (isSmall() && r.isSmall()) {
+            final long left = checkedMultiply(mSmallNum, r.mSmallDen);
+            final long right = checkedMultiply(r.mSmallNum, mSmallDen);
+            if (left != OVERFLOW && right != OVERFLOW) {
+                final int cmp = left < right ? -1 : (left == right ? 0 : 1);
+                return cmp * Long.signum(mSmallDen) * Long.signum(r.mSmallDen);
+            }
+        }
+        return bigNum().multiply(r.bigDen()).compareTo(r.bigNum().multiply(bigDen()))
+                * bigDen().signum() * r.bigDen().signum();
     }
 
     public int signum() {
+        if (isSmall()) {
+            return Long.signum(mSmallNum) * Long.signum(mSmallDen);
+        }
         return mNum.signum() * mDen.signum();
     }
 
@@ -202,6 +418,13 @@ public class BoundedRational {
         return compareTo(r) == 0;
     }
 
+    /**
+     * Return the larger of the baselineBits() of two non-null operands.
+     */
+    private static int maxBaselineBits(BoundedRational r1, BoundedRational r2) {
+        return Math.max(r1.baselineBits(), r2.baselineBits());
+    }
+
     // We use static methods for arithmetic, so that we can easily handle the null case.  We try
     // to catch domain errors whenever possible, sometimes even when one of the arguments is null,
     // but not relevant.
@@ -213,6 +436,10 @@ public class BoundedRational {
         if (r == null) {
             return null;
         }
+        if (r.isSmall()) {
+            return r.mSmallNum % r.mSmallDen == 0
+                    ? BigInteger.valueOf(r.mSmallNum / r.mSmallDen) : null;
+        }
         final BigInteger[] quotAndRem = r.mNum.divideAndRemainder(r.mDen);
         if (quotAndRem[1].signum() == 0) {
             return quotAndRem[0];
@@ -224,9 +451,18 @@ public class BoundedRational {
         if (r1 == null || r2 == null) {
             return null;
         }
-        final BigInteger den = r1.mDen.multiply(r2.mDen);
-        final BigInteger num = r1.mNum.multiply(r2.mDen).add(r2.mNum.multiply(r1.mDen));
-        return maybeReduce(new BoundedRational(num,den));
+        if (r1.isSmall() && r2.isSmall()) {
+            final long den = checkedMultiply(r1.mSmallDen, r2.mSmallDen);
+            final long num = checkedAdd(checkedMultiply(r1.mSmallNum, r2.mSmallDen),
+                    checkedMultiply(r2.mSmallNum, r1.mSmallDen));
+            if (den != OVERFLOW && num != OVERFLOW) {
+                return maybeReduce(new BoundedRational(num, den), maxBaselineBits(r1, r2));
+            }
+        }
+        final BigInteger den = r1.bigDen().multiply(r2.bigDen());
+        final BigInteger num =
+                r1.bigNum().multiply(r2.bigDen()).add(r2.bigNum().multiply(r1.bigDen()));
+        return maybeReduce(new BoundedRational(num,den), maxBaselineBits(r1, r2));
     }
 
     /**
@@ -237,7 +473,10 @@ public class BoundedRational {
         if (r == null) {
             return null;
         }
-        return new BoundedRational(r.mNum.negate(), r.mDen);
+        if (r.isSmall()) {
+            return new BoundedRational(-r.mSmallNum, r.mSmallDen);
+        }
+        return new BoundedRational(r.mNum.negate(), r.mDen, r.mBaselineBits);
     }
 
     public static BoundedRational subtract(BoundedRational r1, BoundedRational r2) {
@@ -260,13 +499,24 @@ public class BoundedRational {
         if (r2 == ONE) {
             return r1;
         }
-        final BigInteger num = r1.mNum.multiply(r2.mNum);
-        final BigInteger den = r1.mDen.multiply(r2.mDen);
+        if (r1.isSmall() && r2.isSmall()) {
+            final long num = checkedMultiply(r1.mSmallNum, r2.mSmallNum);
+            final long den = checkedMultiply(r1.mSmallDen, r2.mSmallDen);
+            if (num != OVERFLOW && den != OVERFLOW) {
+                return new BoundedRational(num, den);
+            }
+        }
+        final BigInteger num = r1.bigNum().multiply(r2.bigNum());
+        final BigInteger den = r1.bigDen().multiply(r2.bigDen());
         return new BoundedRational(num,den);
     }
 
     public static BoundedRational multiply(BoundedRational r1, BoundedRational r2) {
-        return maybeReduce(rawMultiply(r1, r2));
+        final BoundedRational product = rawMultiply(r1, r2);
+        if (product == null) {
+            return null;
+        }
+        return maybeReduce(product, maxBaselineBits(r1, r2));
     }
 
     public static class ZeroDivisionException extends ArithmeticException {
@@ -282,10 +532,13 @@ public class BoundedRational {
         if (r == null) {
             return null;
         }
-        if (r.mNum.signum() == 0) {
+        if (r.signum() == 0) {
             throw new ZeroDivisionException();
         }
-        return new BoundedRational(r.mDen, r.mNum);
+        if (r.isSmall()) {
+            return new BoundedRational(r.mSmallDen, r.mSmallNum);
+        }
+        return new BoundedRational(r.mDen, r.mNum, r.mBaselineBits);
     }
 
     public static BoundedRational divide(BoundedRational r1, BoundedRational r2) {
@@ -298,9 +551,19 @@ public class BoundedRational {
             return null;
         }
         r = r.positiveDen().reduce();
-        if (r.mNum.signum() < 0) {
+        if (r.signum() < 0) {
             throw new ArithmeticException("sqrt(negative)");
         }
+        if (r.isSmall()) {
+            // Squaring can overflow only if the rounded root is slightly above sqrt(2^63), in
+            // which case the argument wasn't a square, and the negative product can't match.
+            final long num_sqrt = Math.round(Math.sqrt((double) r.mSmallNum));
+            final long den_sqrt = Math.round(Math.sqrt((double) r.mSmallDen));
+            if (num_sqrt * num_sqrt != r.mSmallNum || den_sqrt * den_sqrt != r.mSmallDen) {
+                return null;
+            }
+            return new BoundedRational(num_sqrt, den_sqrt);
+        }
         final BigInteger num_sqrt = BigInteger.valueOf(Math.round(Math.sqrt(r.mNum.doubleValue())));
         if (!num_sqrt.multiply(num_sqrt).equals(r.mNum)) {
             return null;
@@ -312,6 +575,58 @@ public class BoundedRational {
         return new BoundedRational(num_sqrt, den_sqrt);
     }
 
+    // Trial divisors used by squareFreePart().
+    private static final long SQUARE_FREE_TRIAL_LIMIT = 2048;
+
+    /**
+     * Return the square-free part of n > 0, i.e. the product of the primes that divide it an
+     * odd number of times, or 0 if we can't determine it by cheap trial division.
+     */
+    private static long squareFreePart(long n) {
+        long result = 1;
+        long d = 2;
+        for (; d <= SQUARE_FREE_TRIAL_LIMIT && d * d <= n; d += (d == 2 ? 1 : 2)) {
+            if (n % d == 0) {
+                boolean odd = false;
+                do {
+                    n /= d;
+                    odd = !odd;
+                } while (n % d == 0);
+                if (odd) {
+                    result *= d;
+                }
+            }
+        }
+        if (d * d > n) {
+            // n is 1 or prime.
+            return result * n;
+        }
+        // All remaining prime factors are > SQUARE_FREE_TRIAL_LIMIT.
+        final long root = Math.round(Math.sqrt((double) n));
+        if (root * root == n) {
+            return result;
+        }
+        if (n / SQUARE_FREE_TRIAL_LIMIT / SQUARE_FREE_TRIAL_LIMIT < SQUARE_FREE_TRIAL_LIMIT) {
+            // At most two prime factors, which are distinct.
+            return result * n;
+        }
+        return 0;
+    }
+
+    /**
+     * Return the smallest integer f such that r / f is the square of a rational, or 0 if we
+     * can't easily find it.  Requires r > 0.
+     */
+    public static long squareFreePart(BoundedRational r) {
+        r = r.positiveDen().reduce();
+        if (!r.isSmall()) {
+            return 0;
+        }
+        // num/den = num * den / den^2
+        final long n = checkedMultiply(r.mSmallNum, r.mSmallDen);
+        return n == OVERFLOW ? 0 : squareFreePart(n);
+    }
+
     public final static BoundedRational ZERO = new BoundedRational(0);
     public final static BoundedRational HALF = new BoundedRational(1,2);
     public final static BoundedRational MINUS_HALF = new BoundedRational(-1,2);
@@ -333,24 +648,50 @@ public class BoundedRational {
 
     private static final BigInteger BIG_TWO = BigInteger.valueOf(2);
 
+    /**
+     * Charge the current EvaluationContext for rawMultiply(r1, r2).
+     */
+    private static void chargeMultiply(BoundedRational r1, BoundedRational r2) {
+        EvaluationContext.chargeMultiply(r1.numBitLength(), r2.numBitLength());
+        EvaluationContext.chargeMultiply(r1.denBitLength(), r2.denBitLength());
+    }
+
+    /**
+     * Charge the current EvaluationContext for base.pow(exp), where exp >= 2.
+     * BigInteger.pow() removes factors of two from base, and then squares the remaining odd
+     * part up to the largest power 2^k <= exp/2.  The last squaring dominates.
+     */
+    private static void chargePow(BigInteger base, BigInteger exp) {
+        final int oddBits = base.bitLength() - Math.max(base.getLowestSetBit(), 0);
+        final double squaredBits = (oddBits - 1) * Math.pow(2.0, exp.bitLength() - 2) + 1;
+        final int bits = (int) Math.min(squaredBits, Integer.MAX_VALUE);
+        EvaluationContext.chargeMultiply(bits, bits);
+    }
+
     /**
      * Compute integral power of this, assuming this has been reduced and exp is >= 0.
+     * The numerator and denominator are relatively prime, and hence so are their powers.  Thus
+     * we can leave the repeated squaring to BigInteger.pow(), and the result is reduced.
      */
     private BoundedRational rawPow(BigInteger exp) {
+        if (exp.signum() == 0) {
+            return ONE;
+        }
         if (exp.equals(BigInteger.ONE)) {
             return this;
         }
-        if (exp.and(BigInteger.ONE).intValue() == 1) {
-            return rawMultiply(rawPow(exp.subtract(BigInteger.ONE)), this);
+        if (isSmall() && mSmallNum >= -1 && mSmallNum <= 1 && Math.abs(mSmallDen) == 1) {
+            // 0, 1 or -1.  Exp may be arbitrarily large.
+            return mSmallNum == 0 || exp.testBit(0) ? this : ONE;
         }
-        if (exp.signum() == 0) {
-            return ONE;
+        chargePow(bigNum(), exp);
+        chargePow(bigDen(), exp);
+        if (exp.bitLength() > 31) {
+            // The result would have more than Integer.MAX_VALUE bits.
+            throw new ArithmeticException("Power too big");
         }
-        BoundedRational tmp = rawPow(exp.shiftRight(1));
-        if (Thread.interrupted()) {
-            throw new CR.AbortedException();
-        }
-        return rawMultiply(tmp, tmp);
+        final int n = exp.intValue();
+        return new BoundedRational(bigNum().pow(n), bigDen().pow(n));
     }
 
     /**
@@ -371,7 +712,7 @@ public class BoundedRational {
         if (exp == null) {
             return null;
         }
-        if (exp.mNum.signum() == 0) {
+        if (exp.signum() == 0) {
             // Questionable if base has undefined value.  Java.lang.Math.pow() returns 1 anyway,
             // so we do the same.
             return new BoundedRational(1);
@@ -380,10 +721,10 @@ public class BoundedRational {
             return null;
         }
         exp = exp.reduce().positiveDen();
-        if (!exp.mDen.equals(BigInteger.ONE)) {
+        if (!exp.denIsOne()) {
             return null;
         }
-        return base.pow(exp.mNum);
+        return base.pow(exp.bigNum());
     }
 
 
@@ -403,11 +744,11 @@ public class BoundedRational {
         int powersOfTwo = 0;  // Max power of 2 that divides denominator
         int powersOfFive = 0;  // Max power of 5 that divides denominator
         // Try the easy case first to speed things up.
-        if (r.mDen.equals(BigInteger.ONE)) {
+        if (r.denIsOne()) {
             return 0;
         }
         r = r.reduce();
-        BigInteger den = r.mDen;
+        BigInteger den = r.bigDen();
         if (den.bitLength() > MAX_SIZE) {
             return Integer.MAX_VALUE;
         }
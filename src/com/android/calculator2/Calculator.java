@@ -76,11 +76,13 @@ import com.android.calculator2.CalculatorFormula.OnTextSizeChangeListener;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
 import java.text.DecimalFormatSymbols;
 
 import static com.android.calculator2.CalculatorFormula.OnFormulaContextMenuClickListener;
@@ -453,6 +455,12 @@ public class Calculator extends Activity
                         : View.IMPORTANT_FOR_ACCESSIBILITY_AUTO);
     }
 
+    @Override
+    protected void onPause() {
+        mEvaluator.persistConstants();
+        super.onPause();
+    }
+
     @Override
     protected void onSaveInstanceState(@NonNull Bundle outState) {
         mEvaluator.cancelAll(true);
@@ -560,6 +568,14 @@ public class Calculator extends Activity
         mEvaluator.destroyEvaluator();
     }
 
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (mEvaluator != null) {
+            mEvaluator.dump(prefix, writer);
+        }
+    }
+
     @Override
     public void onActionModeStarted(ActionMode mode) {
         super.onActionModeStarted(mode);
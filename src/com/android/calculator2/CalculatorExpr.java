@@ -22,6 +22,8 @@ import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.style.TtsSpan;
 
+import com.hp.creals.CR;
+
 import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
@@ -29,8 +31,12 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * A mathematical expression represented as a sequence of "tokens".
@@ -77,6 +83,8 @@ class CalculatorExpr {
     private ArrayList<Token> mExpr;  // The actual representation
                                      // as a list of tokens.  Constant
                                      // tokens are always nonempty.
+    private boolean mShared;  // mExpr is also referenced by a snapshot; copy before modifying.
+    private int mPrivateFrom;  // Tokens at lower indices may be shared with a snapshot.
 
     private static enum TokenKind { CONSTANT, OPERATOR, PRE_EVAL };
     private static TokenKind[] tokenKindValues = TokenKind.values();
@@ -100,6 +108,14 @@ class CalculatorExpr {
          * @param context context used for converting button ids to strings
          */
         abstract CharSequence toCharSequence(Context context);
+
+        /**
+         * Append the result of toCharSequence() to ssb.  Tokens that can do so without
+         * building an intermediate CharSequence override this.
+         */
+        void appendTo(SpannableStringBuilder ssb, Context context) {
+            ssb.append(toCharSequence(context));
+        }
     }
 
     /**
@@ -328,6 +344,8 @@ class CalculatorExpr {
     private static class PreEval extends Token {
         public final long mIndex;
         private final String mShortRep;  // Not internationalized.
+        // Translation buffer shared by all instances.  UI thread only, as for KeyMaps.
+        private static final StringBuilder sTranslated = new StringBuilder();
         PreEval(long index, String shortRep) {
             mIndex = index;
             mShortRep = shortRep;
@@ -354,6 +372,12 @@ class CalculatorExpr {
             return KeyMaps.translateResult(mShortRep);
         }
         @Override
+        void appendTo(SpannableStringBuilder ssb, Context context) {
+            sTranslated.setLength(0);
+            KeyMaps.translateResult(mShortRep, sTranslated);
+            ssb.append(sTranslated);
+        }
+        @Override
         public TokenKind kind() {
             return TokenKind.PRE_EVAL;
         }
@@ -486,6 +510,7 @@ class CalculatorExpr {
             // s invalid and not used below.
         }
         final boolean isConstPiece = (d != KeyMaps.NOT_DIGIT || id == R.id.dec_point);
+        unshareList();
         if (isConstPiece) {
             // Since we treat juxtaposition as multiplication, a constant can appear anywhere.
             if (s == 0) {
@@ -503,7 +528,7 @@ class CalculatorExpr {
                     s++;
                 }
             }
-            return ((Constant)(mExpr.get(s-1))).add(id);
+            return modifiableLastConstant().add(id);
         } else {
             mExpr.add(new Operator(id));
             return true;
@@ -515,8 +540,7 @@ class CalculatorExpr {
      * Assumes there is a constant at the end of the expression.
      */
     void addExponent(int exp) {
-        Token lastTok = mExpr.get(mExpr.size() - 1);
-        ((Constant) lastTok).addExponent(exp);
+        modifiableLastConstant().addExponent(exp);
     }
 
     /**
@@ -546,6 +570,7 @@ class CalculatorExpr {
      * reused directly.
      */
     public void append(CalculatorExpr expr2) {
+        unshareList();
         int s = mExpr.size();
         int s2 = expr2.mExpr.size();
         // Check that we're not concatenating Constant or PreEval tokens, since the result would
@@ -575,20 +600,28 @@ class CalculatorExpr {
         }
         Token last = mExpr.get(s-1);
         if (last instanceof Constant) {
-            Constant c = (Constant)last;
+            Constant c = modifiableLastConstant();
             c.delete();
             if (!c.isEmpty()) {
                 return;
             }
         }
+        unshareList();
         mExpr.remove(s-1);
+        mPrivateFrom = Math.min(mPrivateFrom, s-1);
     }
 
     /**
      * Remove all tokens from the expression.
      */
     public void clear() {
-        mExpr.clear();
+        if (mShared) {
+            mExpr = new ArrayList<Token>();
+            mShared = false;
+        } else {
+            mExpr.clear();
+        }
+        mPrivateFrom = 0;
     }
 
     public boolean isEmpty() {
@@ -611,6 +644,44 @@ class CalculatorExpr {
         return result;
     }
 
+    /**
+     * Return an unmodifiable copy of the expression, in constant time.
+     * The token list and tokens are shared until this expression is next modified, at which
+     * point we copy the list, and any Constant token we modify in place.
+     */
+    CalculatorExpr snapshot() {
+        mShared = true;
+        mPrivateFrom = mExpr.size();
+        final CalculatorExpr result = new CalculatorExpr(mExpr);
+        result.mShared = true;
+        result.mPrivateFrom = mPrivateFrom;
+        return result;
+    }
+
+    /**
+     * Make mExpr safe to modify, by copying it if it is shared with a snapshot.
+     */
+    private void unshareList() {
+        if (mShared) {
+            mExpr = new ArrayList<Token>(mExpr);
+            mShared = false;
+        }
+    }
+
+    /**
+     * Return the trailing Constant token, first replacing it with a copy if a snapshot may
+     * refer to it.
+     */
+    private Constant modifiableLastConstant() {
+        unshareList();
+        final int s = mExpr.size();
+        if (s - 1 < mPrivateFrom) {
+            mExpr.set(s - 1, (Token) ((Constant) mExpr.get(s - 1)).clone());
+            mPrivateFrom = s - 1;
+        }
+        return (Constant) mExpr.get(s - 1);
+    }
+
     // Am I just a constant?
     public boolean isConstant() {
         if (mExpr.size() != 1) {
@@ -654,16 +725,23 @@ class CalculatorExpr {
         public final int mPrefixLength; // Length of prefix to evaluate. Not explicitly saved.
         public final boolean mDegreeMode;
         public final ExprResolver mExprResolver;  // Reconstructed, not saved.
+        // Size limit for exact rational powers.  Not saved.
+        public final long mMaxExactPowBits;
         // If we add any other kinds of evaluation modes, they go here.
         EvalContext(boolean degreeMode, int len, ExprResolver er) {
+            this(degreeMode, len, er, Long.MAX_VALUE);
+        }
+        EvalContext(boolean degreeMode, int len, ExprResolver er, long maxExactPowBits) {
             mDegreeMode = degreeMode;
             mPrefixLength = len;
             mExprResolver = er;
+            mMaxExactPowBits = maxExactPowBits;
         }
         EvalContext(DataInput in, int len, ExprResolver er) throws IOException {
             mDegreeMode = in.readBoolean();
             mPrefixLength = len;
             mExprResolver = er;
+            mMaxExactPowBits = Long.MAX_VALUE;
         }
         void write(DataOutput out) throws IOException {
             out.writeBoolean(mDegreeMode);
@@ -849,7 +927,7 @@ class CalculatorExpr {
         if (isOperator(cpos, R.id.op_pow, ec)) {
             final EvalRet exp = evalSignedFactor(cpos + 1, ec);
             cpos = exp.pos;
-            val = val.pow(exp.val);
+            val = val.pow(exp.val, ec.mMaxExactPowBits);
         }
         return new EvalRet(cpos, val);
     }
@@ -1035,25 +1113,90 @@ class CalculatorExpr {
         }
     }
 
+    /**
+     * Return the unevaluated expressions transitively referenced by the current one, grouped
+     * into levels.  Expressions in each level refer only to expressions in earlier levels, or
+     * to already evaluated ones.  Thus expressions within a level are independent, and
+     * evaluating levels in order never triggers a recursive evaluation.
+     * All expressions in the result will have had er.getExpr() called on them.
+     */
+    public ArrayList<ArrayList<Long>> getReferencedExprLevels(ExprResolver er) {
+        // Discover the dependency graph breadth-first, recording the direct dependencies
+        // of each expression.
+        ArrayList<Long> nodes = new ArrayList<Long>();
+        HashMap<Long, ArrayList<Long>> deps = new HashMap<Long, ArrayList<Long>>();
+        addReferencedExprs(nodes, er);
+        HashSet<Long> seen = new HashSet<Long>(nodes);
+        for (int scanned = 0; scanned < nodes.size(); ++scanned) {
+            final Long index = nodes.get(scanned);
+            ArrayList<Long> direct = new ArrayList<Long>();
+            er.getExpr(index).addReferencedExprs(direct, er);
+            deps.put(index, direct);
+            for (Long d : direct) {
+                if (seen.add(d)) {
+                    nodes.add(d);
+                }
+            }
+        }
+        // Topologically sort into levels by repeatedly removing expressions all of whose
+        // dependencies have been placed.  Expression references can only point to previously
+        // created expressions, so the graph is acyclic.
+        HashMap<Long, ArrayList<Long>> dependents = new HashMap<Long, ArrayList<Long>>();
+        HashMap<Long, Integer> unplacedDeps = new HashMap<Long, Integer>();
+        ArrayList<Long> current = new ArrayList<Long>();
+        for (Long index : nodes) {
+            final ArrayList<Long> direct = deps.get(index);
+            unplacedDeps.put(index, direct.size());
+            if (direct.isEmpty()) {
+                current.add(index);
+            }
+            for (Long d : direct) {
+                ArrayList<Long> users = dependents.get(d);
+                if (users == null) {
+                    users = new ArrayList<Long>();
+                    dependents.put(d, users);
+                }
+                users.add(index);
+            }
+        }
+        ArrayList<ArrayList<Long>> levels = new ArrayList<ArrayList<Long>>();
+        int placed = 0;
+        while (!current.isEmpty()) {
+            levels.add(current);
+            placed += current.size();
+            ArrayList<Long> next = new ArrayList<Long>();
+            for (Long index : current) {
+                final ArrayList<Long> users = dependents.get(index);
+                if (users == null) {
+                    continue;
+                }
+                for (Long user : users) {
+                    final int remaining = unplacedDeps.get(user) - 1;
+                    unplacedDeps.put(user, remaining);
+                    if (remaining == 0) {
+                        next.add(user);
+                    }
+                }
+            }
+            current = next;
+        }
+        if (placed != nodes.size()) {
+            throw new AssertionError("Cyclic expression references");
+        }
+        return levels;
+    }
+
     /**
      * Return a list of unevaluated expressions transitively referenced by the current one.
      * All expressions in the resulting list will have had er.getExpr() called on them.
-     * The resulting list is ordered such that evaluating expressions in list order
-     * should trigger few recursive evaluations.
+     * The resulting list is topologically sorted, so that evaluating expressions in list order
+     * never triggers recursive evaluations.
      */
     public ArrayList<Long> getTransitivelyReferencedExprs(ExprResolver er) {
-        // We could avoid triggering any recursive evaluations by actually building the
-        // dependency graph and topologically sorting it. Note that sorting by index works
-        // for positive and negative indices separately, but not their union. Currently we
-        // just settle for reverse breadth-first-search order, which handles the common case
-        // of simple dependency chains well.
         ArrayList<Long> list = new ArrayList<Long>();
-        int scanned = 0;  // We've added expressions referenced by [0, scanned) to the list
-        addReferencedExprs(list, er);
-        while (scanned != list.size()) {
-            er.getExpr(list.get(scanned++)).addReferencedExprs(list, er);
+        for (ArrayList<Long> level : getReferencedExprLevels(er)) {
+            list.addAll(level);
         }
-        Collections.reverse(list);
         return list;
     }
 
@@ -1069,6 +1212,105 @@ class CalculatorExpr {
         return er.putResultIfAbsent(index, new_res.val);
     }
 
+    /**
+     * A nestedEval() call to be run in the EvaluationPool.
+     * Unlike a plain ForkJoinTask, this can be cancelled by interrupting the thread running it,
+     * so that CR computations notice the cancellation.  We take care not to leave a stale
+     * interrupt behind for the next task run by the same pool thread.
+     * The task runs in the EvaluationContext of the thread that created it, so it shares the
+     * parent evaluation's cancellation token and work budget.
+     */
+    private static class NestedEvalTask implements Callable<UnifiedReal> {
+        private final CalculatorExpr mExpr;
+        private final long mIndex;
+        private final ExprResolver mExprResolver;
+        private final EvaluationContext mEvalContext;
+        private Thread mRunner;  // Protected by this.
+        private boolean mCancelled;  // Protected by this.
+        Future<UnifiedReal> mFuture;
+
+        NestedEvalTask(CalculatorExpr expr, long index, ExprResolver er) {
+            mExpr = expr;
+            mIndex = index;
+            mExprResolver = er;
+            mEvalContext = EvaluationContext.current();
+        }
+
+        @Override
+        public UnifiedReal call() throws SyntaxException {
+            synchronized (this) {
+                if (mCancelled) {
+                    throw new CR.AbortedException();
+                }
+                mRunner = Thread.currentThread();
+            }
+            final EvaluationContext previous = mEvalContext.attach();
+            try {
+                return mExpr.nestedEval(mIndex, mExprResolver);
+            } finally {
+                mEvalContext.detach(previous);
+                synchronized (this) {
+                    mRunner = null;
+                    if (mCancelled) {
+                        Thread.interrupted();
+                    }
+                }
+            }
+        }
+
+        synchronized void cancel() {
+            mCancelled = true;
+            if (mRunner != null) {
+                mRunner.interrupt();
+            }
+            mFuture.cancel(false);
+        }
+    }
+
+    /**
+     * Evaluate a set of mutually independent embedded expressions, in parallel if there is more
+     * than one.  Results are saved via er.putResultIfAbsent().
+     * The current thread evaluates one of them itself, and then waits for the others.
+     */
+    private void evalIndependent(ArrayList<Long> indices, ExprResolver er)
+            throws SyntaxException {
+        final int n = indices.size();
+        if (n == 1) {
+            nestedEval(indices.get(0), er);
+            return;
+        }
+        final ForkJoinPool pool = EvaluationPool.get();
+        final ArrayList<NestedEvalTask> tasks = new ArrayList<NestedEvalTask>(n - 1);
+        try {
+            for (int i = 1; i < n; ++i) {
+                NestedEvalTask task = new NestedEvalTask(this, indices.get(i), er);
+                task.mFuture = pool.submit(task);
+                tasks.add(task);
+            }
+            nestedEval(indices.get(0), er);
+            for (NestedEvalTask task : tasks) {
+                task.mFuture.get();
+            }
+        } catch (InterruptedException e) {
+            throw new CR.AbortedException();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof SyntaxException) {
+                throw (SyntaxException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new AssertionError("Unexpected nested evaluation failure: " + cause);
+        } finally {
+            // No-op for completed tasks.  Otherwise we failed, and the results are not needed.
+            for (NestedEvalTask task : tasks) {
+                task.cancel();
+            }
+        }
+    }
+
     /**
      * Evaluate the expression excluding trailing binary operators.
      * Errors result in exceptions, most of which are unchecked.  Should not be called
@@ -1077,18 +1319,29 @@ class CalculatorExpr {
      *
      * @param degreeMode use degrees rather than radians
      */
-    UnifiedReal eval(boolean degreeMode, ExprResolver er) throws SyntaxException
+    UnifiedReal eval(boolean degreeMode, ExprResolver er) throws SyntaxException {
+        return eval(degreeMode, er, Long.MAX_VALUE);
+    }
+
+    /**
+     * Evaluate the expression, approximating rather than exactly computing any rational
+     * powers whose exact representation would need more than roughly maxExactPowBits bits.
+     * Embedded expressions are evaluated without such a limit.
+     */
+    UnifiedReal eval(boolean degreeMode, ExprResolver er, long maxExactPowBits)
+                        throws SyntaxException
                         // And unchecked exceptions thrown by UnifiedReal, CR,
                         // and BoundedRational.
     {
-        // First evaluate all indirectly referenced expressions in increasing index order.
+        // First evaluate all indirectly referenced expressions in dependency order.
         // This ensures that subsequent evaluation never encounters an embedded PreEval
         // expression that has not been previously evaluated.
         // We could do the embedded evaluations recursively, but that risks running out of
-        // stack space.
-        ArrayList<Long> referenced = getTransitivelyReferencedExprs(er);
-        for (long index : referenced) {
-            nestedEval(index, er);
+        // stack space.  Expressions within a level do not depend on each other, and are
+        // evaluated in parallel.
+        final long start = EvaluationMetrics.start();
+        for (ArrayList<Long> level : getReferencedExprLevels(er)) {
+            evalIndependent(level, er);
         }
         try {
             // We currently never include trailing binary operators, but include other trailing
@@ -1096,7 +1349,7 @@ class CalculatorExpr {
             // expressions, and don't generate an error where we previously displayed an instant
             // result.  This reflects the Android L design.
             int prefixLen = trailingBinaryOpsStart();
-            EvalContext ec = new EvalContext(degreeMode, prefixLen, er);
+            EvalContext ec = new EvalContext(degreeMode, prefixLen, er, maxExactPowBits);
             EvalRet res = evalExpr(0, ec);
             if (res.pos != prefixLen) {
                 throw new SyntaxException("Failed to parse full expression");
@@ -1104,14 +1357,400 @@ class CalculatorExpr {
             return res.val;
         } catch (IndexOutOfBoundsException e) {
             throw new SyntaxException("Unexpected expression end");
+        } finally {
+            EvaluationMetrics.stop(EvaluationMetrics.TIMER_EVAL, start);
+        }
+    }
+
+    /**
+     * Static, conservative information about the value of a subexpression, used by
+     * estimateCost().  We track bounds on log2 of the absolute value, the sign if known, and
+     * whether the value is certain to be represented as an exact rational number, and if so
+     * roughly how large that representation could be.  Unknown bounds are infinite.
+     *
+     * The log2 bounds and the sign must hold for every value the evaluator could produce,
+     * since a minLog2 that is too large makes us refuse a displayable result.  Each operation
+     * below states why its bounds do.  If the evaluator would report an error instead of
+     * producing a value, e.g. for division by zero, the result is UNKNOWN, so that we do not
+     * report a timeout instead.  The exactness information only affects whether we approximate
+     * powers, and is not relied upon for refusing expressions.
+     */
+    private static class Bound {
+        public final double minLog2;  // Lower bound on log2(|value|); -Infinity if may be zero.
+        public final double maxLog2;  // Upper bound on log2(|value|).
+        public final int sign;  // 1 or -1 if known and value nonzero, 0 otherwise.
+        public final boolean exact;  // Known to be represented as an exact rational.
+        public final boolean integer;  // Known to be represented as an exact integer.
+        public final double maxBits;  // Bound on numerator + denominator bits, if exact.
+
+        Bound(double minL, double maxL, int sg, boolean ex, boolean in, double mb) {
+            // Invalid arithmetic on infinite bounds results in NaN; treat as unknown.
+            minLog2 = Double.isNaN(minL) ? Double.NEGATIVE_INFINITY : minL;
+            maxLog2 = Double.isNaN(maxL) ? Double.POSITIVE_INFINITY : maxL;
+            sign = sg;
+            exact = ex;
+            integer = ex && in;
+            maxBits = ex ? mb : Double.POSITIVE_INFINITY;
+        }
+
+        static final Bound UNKNOWN = new Bound(Double.NEGATIVE_INFINITY,
+                Double.POSITIVE_INFINITY, 0, false, false, Double.POSITIVE_INFINITY);
+        static final Bound ONE = new Bound(0.0, 0.0, 1, true, true, 2);
+        // log2(1/100) = -6.644.  Used for percentages, which the evaluator multiplies by 1/100.
+        static final Bound ONE_HUNDREDTH = new Bound(-6.65, -6.64, 1, true, false, 9);
+
+        // log2 bounds for a known nonzero constant in [lo, hi].
+        static Bound approx(double lo, double hi) {
+            return new Bound(log2(lo), log2(hi), 1, false, false, 0);
+        }
+
+        static Bound of(BoundedRational r) {
+            final int sg = r.signum();
+            if (sg == 0) {
+                return new Bound(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, 0,
+                        true, true, 2);
+            }
+            final int wholeBits = r.wholeNumberBits();
+            return new Bound(wholeBits - 1, wholeBits + 1, sg, true,
+                    BoundedRational.asBigInteger(r) != null, r.representationBits());
+        }
+
+        // A representation of the given size is used only if small enough, or an integer.
+        private static boolean fits(boolean integer, double bits) {
+            return integer || bits <= BoundedRational.MAX_SIZE;
+        }
+
+        Bound negate() {
+            return new Bound(minLog2, maxLog2, -sign, exact, integer, maxBits);
+        }
+
+        // log2|xy| = log2|x| + log2|y|.  If either may be zero, its minLog2 of -Infinity makes
+        // that of the product -Infinity, or NaN, i.e. unknown, if the other's maxLog2 is
+        // +Infinity.
+        Bound multiply(Bound b) {
+            final boolean in = integer && b.integer;
+            final double mb = maxBits + b.maxBits;
+            return new Bound(minLog2 + b.minLog2, maxLog2 + b.maxLog2, sign * b.sign,
+                    exact && b.exact && fits(in, mb), in, mb);
+        }
+
+        // log2|x/y| = log2|x| - log2|y|.  The divisor's maxLog2 is -Infinity only if it is
+        // zero, which is an error.
+        Bound divide(Bound b) {
+            if (b.maxLog2 == Double.NEGATIVE_INFINITY) {
+                return UNKNOWN;
+            }
+            final double mb = maxBits + b.maxBits;
+            return new Bound(minLog2 - b.maxLog2, maxLog2 - b.minLog2, sign * b.sign,
+                    exact && b.exact && fits(false, mb), false, mb);
+        }
+
+        // |x + y| <= 2 max(|x|, |y|).  If x and y are known to have the same sign, then also
+        // |x + y| >= max(|x|, |y|).  Otherwise there may be cancellation, and we know nothing.
+        Bound add(Bound b) {
+            final boolean sameSign = sign != 0 && sign == b.sign;
+            final boolean in = integer && b.integer;
+            final double mb = in ? Math.max(maxBits, b.maxBits) + 1 : maxBits + b.maxBits + 1;
+            return new Bound(sameSign ? Math.max(minLog2, b.minLog2) : Double.NEGATIVE_INFINITY,
+                    Math.max(maxLog2, b.maxLog2) + 1, sameSign ? sign : 0,
+                    exact && b.exact && fits(in, mb), in, mb);
+        }
+
+        // log2(sqrt(x)) = log2(x) / 2.  Negative arguments are an error.
+        Bound sqrt() {
+            if (sign < 0) {
+                return UNKNOWN;
+            }
+            return new Bound(minLog2 / 2, maxLog2 / 2, sign, false, false, 0);
+        }
+    }
+
+    private static double log2(double x) {
+        return Math.log(x) / Math.log(2.0);
+    }
+
+    private static final double LOG2_10 = log2(10.0);
+
+    /**
+     * Estimates of the cost of evaluating an expression, and of the size of its value.
+     * Produced by estimateCost().  Work is measured in EvaluationContext units.
+     */
+    public static class CostEstimate {
+        // Lower bound on log2 of the absolute value of the result.  -Infinity if unknown.
+        public double minResultLog2 = Double.NEGATIVE_INFINITY;
+        // Lower bound on the work EvaluationContext will be charged for exact factorials, if
+        // evaluation gets that far.  Unavoidable.
+        public double factorialWork;
+        // Estimate of the work needed to compute exact rational powers.  This can be avoided
+        // by computing an approximation instead.  See eval(boolean, ExprResolver, long).
+        // Not a strict lower bound, since powers of two are cheap, but only used to decide
+        // whether to approximate.
+        public double exactPowWork;
+    }
+
+    /**
+     * Number of bits in an exact power we are willing to compute with the given work budget.
+     * Roughly the inverse of the work estimate in boundPow().
+     */
+    static long maxExactPowBits(long budget) {
+        return (long) (2.0 * EvaluationContext.maxSquareBits((double) budget));
+    }
+
+    private static class BoundRet {
+        public int pos;  // Next position to be analyzed.
+        public final Bound val;
+        BoundRet(int p, Bound v) {
+            pos = p;
+            val = v;
+        }
+    }
+
+    // The following mirror the eval functions above, but compute a Bound instead of a value,
+    // and accumulate work estimates in a CostEstimate.  They never evaluate embedded
+    // expressions; if an embedded result has not yet been computed, we know nothing about it.
+
+    private Bound boundConstant(Constant c) {
+        String digits = c.mWhole + c.mFraction;
+        int leadingZeroes = 0;
+        while (leadingZeroes < digits.length() && digits.charAt(leadingZeroes) == '0') {
+            ++leadingZeroes;
+        }
+        final int sigDigits = digits.length() - leadingZeroes;
+        if (sigDigits == 0) {
+            return new Bound(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, 0, true, true, 2);
+        }
+        final int fractionLen = c.mFraction.length();
+        // The value is in [lead, lead + 1) * 10^scale.
+        final int leadDigits = Math.min(sigDigits, 15);
+        final double lead = Double.parseDouble(
+                digits.substring(leadingZeroes, leadingZeroes + leadDigits));
+        final double scale = (double) (sigDigits - leadDigits - fractionLen) + c.mExponent;
+        final double numDigits = digits.length() + Math.max(c.mExponent, 0);
+        final double denDigits = fractionLen + Math.max(-c.mExponent, 0);
+        return new Bound(log2(lead) + scale * LOG2_10, log2(lead + 1) + scale * LOG2_10, 1,
+                true, fractionLen <= c.mExponent, (numDigits + denDigits) * LOG2_10 + 2);
+    }
+
+    private BoundRet boundUnary(int i, EvalContext ec, CostEstimate ce) throws SyntaxException {
+        final Token t = mExpr.get(i);
+        if (t instanceof Constant) {
+            return new BoundRet(i+1, boundConstant((Constant)t));
+        }
+        if (t instanceof PreEval) {
+            final UnifiedReal res = ec.mExprResolver.getResult(((PreEval)t).mIndex);
+            final BoundedRational r = res == null ? null : res.boundedRationalValue();
+            return new BoundRet(i+1, r == null ? Bound.UNKNOWN : Bound.of(r));
+        }
+        BoundRet argVal;
+        switch(((Operator)(t)).id) {
+        case R.id.const_pi:
+            return new BoundRet(i+1, Bound.approx(3.14, 3.15));
+        case R.id.const_e:
+            return new BoundRet(i+1, Bound.approx(2.71, 2.72));
+        case R.id.op_sqrt:
+            if (isOperator(i+1, R.id.op_sub, ec)) {
+                argVal = boundUnary(i+2, ec, ce);
+                return new BoundRet(argVal.pos, argVal.val.negate().sqrt());
+            } else {
+                argVal = boundUnary(i+1, ec, ce);
+                return new BoundRet(argVal.pos, argVal.val.sqrt());
+            }
+        case R.id.lparen:
+        case R.id.fun_sin:
+        case R.id.fun_cos:
+        case R.id.fun_tan:
+        case R.id.fun_ln:
+        case R.id.fun_exp:
+        case R.id.fun_log:
+        case R.id.fun_arcsin:
+        case R.id.fun_arccos:
+        case R.id.fun_arctan:
+            argVal = boundExpr(i+1, ec, ce);
+            if (isOperator(argVal.pos, R.id.rparen, ec)) {
+                argVal.pos++;
+            }
+            return new BoundRet(argVal.pos,
+                    ((Operator)(t)).id == R.id.lparen ? argVal.val : Bound.UNKNOWN);
+        default:
+            throw new SyntaxException("Unrecognized token in expression");
+        }
+    }
+
+    /**
+     * Bound for x!, recording the cost of computing it.
+     * n^n >= n! >= (n/e)^n, and Factorial.minWork() is monotonic in n.  Arguments that may be
+     * negative or zero are treated as unknown, since the former are an error.
+     */
+    private static Bound boundFact(Bound x, CostEstimate ce) {
+        if (!x.integer || x.sign <= 0) {
+            return Bound.UNKNOWN;
+        }
+        if (x.minLog2 > 31) {
+            // UnifiedReal.fact() refuses quickly.
+            return Bound.UNKNOWN;
+        }
+        // Otherwise the cost recorded here, not a fixed argument limit, decides whether we try.
+        final double nMin = Math.max(Math.pow(2.0, x.minLog2), 1.0);
+        final double nMax = Math.min(Math.pow(2.0, x.maxLog2), Math.pow(2.0, 31));
+        final double minLog2 = Factorial.minLog2(nMin);
+        final double maxLog2 = nMax * log2(Math.max(nMax, 1.0));
+        ce.factorialWork += Factorial.minWork(nMin);
+        return new Bound(minLog2, maxLog2, 1, true, true, maxLog2 + 1);
+    }
+
+    /**
+     * Bound for base^exp, recording the cost of computing it exactly.
+     * log2|base^exp| = exp log2|base|, which we bound by multiplying the intervals.  If the
+     * exponent's sign is unknown, so is the magnitude.  A zero base may result in an error.
+     * Non-integral powers of non-positive bases are errors or unknown.
+     */
+    private static Bound boundPow(Bound base, Bound exp, CostEstimate ce) {
+        if (exp.exact && exp.sign == 0 && exp.maxLog2 == Double.NEGATIVE_INFINITY) {
+            return Bound.ONE;  // x^0
+        }
+        if (exp.sign == 0 || base.maxLog2 == Double.NEGATIVE_INFINITY
+                || !exp.integer && base.sign <= 0) {
+            return Bound.UNKNOWN;
+        }
+        // log2|result| = exp * log2|base|.  |exp| is in [2^exp.minLog2, 2^exp.maxLog2].
+        final double eMin = Math.pow(2.0, exp.minLog2);
+        final double eMax = Math.pow(2.0, exp.maxLog2);
+        final double lo = exp.sign > 0 ? eMin : -eMax;
+        final double hi = exp.sign > 0 ? eMax : -eMin;
+        final double p1 = lo * base.minLog2;
+        final double p2 = lo * base.maxLog2;
+        final double p3 = hi * base.minLog2;
+        final double p4 = hi * base.maxLog2;
+        final double minLog2 = Math.min(Math.min(p1, p2), Math.min(p3, p4));
+        final double maxLog2 = Math.max(Math.max(p1, p2), Math.max(p3, p4));
+        final int sign = base.sign > 0 ? 1 : 0;
+        if (!(base.exact && exp.integer)) {
+            return new Bound(minLog2, maxLog2, sign, false, false, 0);
+        }
+        // Exact rational power.  If |base| is bounded away from 1, its numerator or denominator
+        // has at least |log2(base)| bits, and is squared up to the largest power of two no more
+        // than |exp| / 2.  See BoundedRational.chargePow().
+        if ((base.minLog2 > 0 || base.maxLog2 < 0) && exp.minLog2 >= 1) {
+            final double minBaseLog2 = Math.min(Math.abs(base.minLog2), Math.abs(base.maxLog2));
+            final double squaredBits =
+                    Math.floor(minBaseLog2) * Math.pow(2.0, Math.floor(exp.minLog2) - 1);
+            ce.exactPowWork += EvaluationContext.multiplyWork(squaredBits, squaredBits);
+        }
+        return new Bound(minLog2, maxLog2, sign, true, base.integer && exp.sign > 0,
+                eMax * base.maxBits);
+    }
+
+    private BoundRet boundSuffix(int i, EvalContext ec, CostEstimate ce) throws SyntaxException {
+        final BoundRet tmp = boundUnary(i, ec, ce);
+        int cpos = tmp.pos;
+        Bound val = tmp.val;
+
+        boolean isFact;
+        boolean isSquared = false;
+        while ((isFact = isOperator(cpos, R.id.op_fact, ec)) ||
+                (isSquared = isOperator(cpos, R.id.op_sqr, ec)) ||
+                isOperator(cpos, R.id.op_pct, ec)) {
+            if (isFact) {
+                val = boundFact(val, ce);
+            } else if (isSquared) {
+                val = val.multiply(val);
+            } else /* percent */ {
+                val = val.multiply(Bound.ONE_HUNDREDTH);
+            }
+            ++cpos;
+        }
+        return new BoundRet(cpos, val);
+    }
+
+    private BoundRet boundFactor(int i, EvalContext ec, CostEstimate ce) throws SyntaxException {
+        final BoundRet result1 = boundSuffix(i, ec, ce);
+        int cpos = result1.pos;
+        Bound val = result1.val;
+        if (isOperator(cpos, R.id.op_pow, ec)) {
+            final BoundRet exp = boundSignedFactor(cpos + 1, ec, ce);
+            cpos = exp.pos;
+            val = boundPow(val, exp.val, ce);
+        }
+        return new BoundRet(cpos, val);
+    }
+
+    private BoundRet boundSignedFactor(int i, EvalContext ec, CostEstimate ce)
+            throws SyntaxException {
+        final boolean negative = isOperator(i, R.id.op_sub, ec);
+        final BoundRet tmp = boundFactor(negative ? i + 1 : i, ec, ce);
+        return new BoundRet(tmp.pos, negative ? tmp.val.negate() : tmp.val);
+    }
+
+    private BoundRet boundTerm(int i, EvalContext ec, CostEstimate ce) throws SyntaxException {
+        BoundRet tmp = boundSignedFactor(i, ec, ce);
+        boolean is_mul = false;
+        boolean is_div = false;
+        int cpos = tmp.pos;
+        Bound val = tmp.val;
+        while ((is_mul = isOperator(cpos, R.id.op_mul, ec))
+               || (is_div = isOperator(cpos, R.id.op_div, ec))
+               || canStartFactor(cpos)) {
+            if (is_mul || is_div) ++cpos;
+            tmp = boundSignedFactor(cpos, ec, ce);
+            val = is_div ? val.divide(tmp.val) : val.multiply(tmp.val);
+            cpos = tmp.pos;
+            is_mul = is_div = false;
+        }
+        return new BoundRet(cpos, val);
+    }
+
+    private BoundRet boundExpr(int i, EvalContext ec, CostEstimate ce) throws SyntaxException {
+        BoundRet tmp = boundTerm(i, ec, ce);
+        boolean is_plus;
+        int cpos = tmp.pos;
+        Bound val = tmp.val;
+        while ((is_plus = isOperator(cpos, R.id.op_add, ec))
+               || isOperator(cpos, R.id.op_sub, ec)) {
+            if (isPercent(cpos + 1)) {
+                // x + n% is x (1 + n/100), as in getPercentFactor().
+                final BoundRet n = boundUnary(cpos + 1, ec, ce);
+                final Bound pct = n.val.multiply(Bound.ONE_HUNDREDTH);
+                val = val.multiply(Bound.ONE.add(is_plus ? pct : pct.negate()));
+                tmp = new BoundRet(cpos + 3, val);
+            } else {
+                tmp = boundTerm(cpos + 1, ec, ce);
+                val = val.add(is_plus ? tmp.val : tmp.val.negate());
+            }
+            cpos = tmp.pos;
+        }
+        return new BoundRet(cpos, val);
+    }
+
+    /**
+     * Cheaply estimate the cost of evaluating this expression, and the size of its result,
+     * without performing any bignum arithmetic.  The result size and factorial work are lower
+     * bounds, and are intended to identify expressions like 10^10^10 or (10^7)! that cannot be
+     * evaluated within the work budget, or whose result could not be displayed anyway.
+     * Embedded expressions whose results are not yet available are treated as unknown.
+     * Never throws; syntax errors just result in less information.
+     */
+    CostEstimate estimateCost(ExprResolver er) {
+        final CostEstimate ce = new CostEstimate();
+        try {
+            final int prefixLen = trailingBinaryOpsStart();
+            final EvalContext ec = new EvalContext(false, prefixLen, er);
+            final BoundRet res = boundExpr(0, ec, ce);
+            if (res.pos == prefixLen) {
+                ce.minResultLog2 = res.val.minLog2;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            // Incomplete expression; keep the work estimates we have.
+        } catch (SyntaxException e) {
+            // Ditto.
         }
+        return ce;
     }
 
     // Produce a string representation of the expression itself
     SpannableStringBuilder toSpannableStringBuilder(Context context) {
         SpannableStringBuilder ssb = new SpannableStringBuilder();
         for (Token t : mExpr) {
-            ssb.append(t.toCharSequence(context));
+            t.appendTo(ssb, context);
         }
         return ssb;
     }
@@ -156,6 +156,16 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
     // The user requested that the result currently being evaluated should be stored to "memory".
     private boolean mStoreToMemoryRequested = false;
 
+    // Buffers reused by redisplay(), so that formatting a scrolled result does not allocate once
+    // they have grown to the display size.  The TextView always gets a fresh copy, since it may
+    // keep referring to, and attach watchers to, the text it is given.  UI thread only.
+    private final StringBuilder mFormattedResult = new StringBuilder();
+    private final StringBuilder mTranslatedResult = new StringBuilder();
+    private final int[] mLastDisplayedOffsetResult = new int[1];
+    private final int[] mRequestedPrecOffset = new int[1];
+    private final boolean[] mTruncated = new boolean[1];
+    private final boolean[] mNegative = new boolean[1];
+
     public CalculatorResult(Context context, AttributeSet attrs) {
         super(context, attrs);
         mScroller = new OverScroller(context);
@@ -181,6 +191,9 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
                     if (!mScrollable) return true;
                     mScroller.fling(mCurrentPos, 0, - (int) velocityX, 0  /* horizontal only */,
                                     mMinPos, mMaxPos, 0, 0);
+                    // Make sure the digits we are going to land on get computed in time.
+                    mEvaluator.prefetchDigits(mIndex, getCharOffset(mScroller.getFinalX()),
+                            - velocityX / mCharWidth, CalculatorResult.this);
                     postInvalidateOnAnimation();
                     return true;
                 }
@@ -203,6 +216,11 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
                     int duration = (int)(e2.getEventTime() - e1.getEventTime());
                     if (duration < 1 || duration > 100) duration = 10;
                     mScroller.startScroll(mCurrentPos, 0, distance, 0, (int)duration);
+                    if (distance > 0) {
+                        mEvaluator.prefetchDigits(mIndex, getCharOffset(mCurrentPos + distance),
+                                1000f * distance / (duration * mCharWidth),
+                                CalculatorResult.this);
+                    }
                     postInvalidateOnAnimation();
                     return true;
                 }
@@ -373,7 +391,7 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
 
     // From Evaluator.CharMetricsInfo.
     @Override
-    public float separatorChars(String s, int len) {
+    public float separatorChars(CharSequence s, int len) {
         int start = 0;
         while (start < len && !Character.isDigit(s.charAt(start))) {
             ++start;
@@ -619,7 +637,7 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
      * Unlike Evaluator.getMsdIndexOf, we treat a final 1 as significant.
      * Pure function; callable from anywhere.
      */
-    public static int getNaiveMsdIndexOf(String s) {
+    public static int getNaiveMsdIndexOf(CharSequence s) {
         final int len = s.length();
         for (int i = 0; i < len; ++i) {
             char c = s.charAt(i);
@@ -632,7 +650,7 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
 
     /**
      * Format a result returned by Evaluator.getString() into a single line containing ellipses
-     * (if appropriate) and an exponent (if appropriate).
+     * (if appropriate) and an exponent (if appropriate).  The result is formatted in place.
      * We add two distinct kinds of exponents:
      * (1) If the final result contains the leading digit we use standard scientific notation.
      * (2) If not, we add an exponent corresponding to an interpretation of the final result as
@@ -642,6 +660,7 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
      * would have been in had we not done so. This minimizes jumps as a result of scrolling.
      * Result is NOT internationalized, uses "E" for exponent.
      * Called only from UI thread; We sometimes omit locking for fields.
+     * @param result The unformatted result on entry, the formatted result on exit.
      * @param precOffset The value that was passed to getString. Identifies the significance of
                 the rightmost digit. A value of 1 means the rightmost digits corresponds to tenths.
      * @param maxDigs The maximum number of characters in the result
@@ -662,19 +681,18 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
                 We insert commas in a way that does consider the width of the actual localized digit
                 separator. Commas count towards maxDigs as the appropriate fraction of a digit.
      */
-    private String formatResult(String in, int precOffset, int maxDigs, boolean truncated,
-            boolean negative, int lastDisplayedOffset[], boolean forcePrecision,
-            boolean forceSciNotation, boolean insertCommas) {
+    private void formatResult(StringBuilder result, int precOffset, int maxDigs,
+            boolean truncated, boolean negative, int lastDisplayedOffset[],
+            boolean forcePrecision, boolean forceSciNotation, boolean insertCommas) {
         final int minusSpace = negative ? 1 : 0;
-        final int msdIndex = truncated ? -1 : getNaiveMsdIndexOf(in);  // INVALID_MSD is OK.
-        String result = in;
+        final int msdIndex = truncated ? -1 : getNaiveMsdIndexOf(result);  // INVALID_MSD is OK.
         boolean needEllipsis = false;
         if (truncated || (negative && result.charAt(0) != '-')) {
             needEllipsis = true;
-            result = KeyMaps.ELLIPSIS + result.substring(1, result.length());
+            result.replace(0, 1, KeyMaps.ELLIPSIS);
             // Ellipsis may be removed again in the type(1) scientific notation case.
         }
-        final int decIndex = result.indexOf('.');
+        final int decIndex = result.indexOf(".");
         if (lastDisplayedOffset != null) {
             lastDisplayedOffset[0] = precOffset;
         }
@@ -703,14 +721,15 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
                 if (decIndex > msdIndex) {
                     // In the forceSciNotation, we can have a decimal point in the relevant digit
                     // range. Remove it.
-                    result = result.substring(0, decIndex)
-                            + result.substring(decIndex + 1, result.length());
+                    result.deleteCharAt(decIndex);
                     // msdIndex and precOffset unaffected.
                 }
                 final int resLen = result.length();
-                String fraction = result.substring(msdIndex + 1, resLen);
-                result = (negative ? "-" : "") + result.substring(msdIndex, msdIndex + 1)
-                        + "." + fraction;
+                result.delete(0, msdIndex);
+                result.insert(1, '.');
+                if (negative) {
+                    result.insert(0, '-');
+                }
                 // Original exp was correct for decimal point at right of fraction.
                 // Adjust by length of fraction.
                 exponent = initExponent + resLen - msdIndex - 1;
@@ -746,14 +765,16 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
                 }
                 if (dropDigits >= result.length() - 1) {
                     // Display too small to show meaningful result.
-                    return KeyMaps.ELLIPSIS + "E" + KeyMaps.ELLIPSIS;
+                    result.setLength(0);
+                    result.append(KeyMaps.ELLIPSIS).append('E').append(KeyMaps.ELLIPSIS);
+                    return;
                 }
-                result = result.substring(0, result.length() - dropDigits);
+                result.setLength(result.length() - dropDigits);
                 if (lastDisplayedOffset != null) {
                     lastDisplayedOffset[0] -= dropDigits;
                 }
             }
-            result = result + "E" + Integer.toString(exponent);
+            result.append('E').append(exponent);
         } else if (insertCommas) {
             // Add commas to the whole number section, and then truncate on left to fit,
             // counting commas as a fractional digit.
@@ -762,12 +783,12 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
             final float nCommaChars;
             if (decIndex != -1) {
                 nCommaChars = separatorChars(result, decIndex);
-                result = StringUtils.addCommas(result, wholeStart, decIndex)
-                        + result.substring(decIndex, orig_length);
+                StringUtils.insertCommas(result, wholeStart, decIndex);
             } else {
                 nCommaChars = separatorChars(result, orig_length);
-                result = StringUtils.addCommas(result, wholeStart, orig_length);
+                StringUtils.insertCommas(result, wholeStart, orig_length);
             }
+            // Unlike addCommas(), insertCommas() leaves the ellipsis, if any, in place.
             if (needEllipsis) {
                 orig_length -= 1;  // Exclude ellipsis.
             }
@@ -785,7 +806,7 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
                 float deletedWidth = 0.0f;
                 while (effectiveLen - mNoExponentCredit - deletedWidth
                         > (float) (maxDigs - 1 /* for ellipsis */)) {
-                    if (result.charAt(deletedChars) == ',') {
+                    if (result.charAt(wholeStart + deletedChars) == ',') {
                         deletedWidth += mGroupingSeparatorWidthRatio;
                     } else {
                         deletedWidth += 1.0f;
@@ -794,16 +815,15 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
                 }
             }
             if (deletedChars > 0) {
-                result = KeyMaps.ELLIPSIS + result.substring(deletedChars, result.length());
-            } else if (needEllipsis) {
-                result = KeyMaps.ELLIPSIS + result;
+                result.replace(0, wholeStart + deletedChars, KeyMaps.ELLIPSIS);
             }
         }
-        return result;
     }
 
     /**
      * Get formatted, but not internationalized, result from mEvaluator.
+     * UI thread only, since this reuses view-owned scratch arrays.
+     * @param result buffer that receives the result, replacing its previous contents
      * @param precOffset requested position (1 = tenths) of last included digit
      * @param maxSize maximum number of characters (more or less) in result
      * @param lastDisplayedOffset zeroth entry is set to actual offset of last included digit,
@@ -813,14 +833,15 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
      * @param forceSciNotation Force scientific notation, even if not required by maxSize.
      * @param insertCommas Insert commas as digit separators.
      */
-    private String getFormattedResult(int precOffset, int maxSize, int lastDisplayedOffset[],
-            boolean forcePrecision, boolean forceSciNotation, boolean insertCommas) {
-        final boolean truncated[] = new boolean[1];
-        final boolean negative[] = new boolean[1];
-        final int requestedPrecOffset[] = {precOffset};
-        final String rawResult = mEvaluator.getString(mIndex, requestedPrecOffset, mMaxCharOffset,
-                maxSize, truncated, negative, this);
-        return formatResult(rawResult, requestedPrecOffset[0], maxSize, truncated[0], negative[0],
+    private void getFormattedResult(StringBuilder result, int precOffset, int maxSize,
+            int lastDisplayedOffset[], boolean forcePrecision, boolean forceSciNotation,
+            boolean insertCommas) {
+        result.setLength(0);
+        mTruncated[0] = mNegative[0] = false;
+        mRequestedPrecOffset[0] = precOffset;
+        mEvaluator.getString(mIndex, mRequestedPrecOffset, mMaxCharOffset, maxSize, mTruncated,
+                mNegative, this, result);
+        formatResult(result, mRequestedPrecOffset[0], maxSize, mTruncated[0], mNegative[0],
                 lastDisplayedOffset, forcePrecision, forceSciNotation, insertCommas);
    }
 
@@ -831,8 +852,10 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
     public String getFullText(boolean withSeparators) {
         if (!mValid) return "";
         if (!mScrollable) return getText().toString();
-        return KeyMaps.translateResult(getFormattedResult(mLastDisplayedOffset, MAX_COPY_SIZE,
-                null, true /* forcePrecision */, false /* forceSciNotation */, withSeparators));
+        final StringBuilder formatted = new StringBuilder();
+        getFormattedResult(formatted, mLastDisplayedOffset, MAX_COPY_SIZE, null,
+                true /* forcePrecision */, false /* forceSciNotation */, withSeparators);
+        return KeyMaps.translateResult(formatted.toString());
     }
 
     /**
@@ -865,10 +888,11 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
             rawResult = rawResult.substring(0, rawResult.length() - 1);
             fractionLsdOffset = -1;
         }
-        final String formattedResult = formatResult(rawResult, fractionLsdOffset, MAX_COPY_SIZE,
-                false, rawResult.charAt(0) == '-', null, true /* forcePrecision */,
+        final StringBuilder formattedResult = new StringBuilder(rawResult);
+        formatResult(formattedResult, fractionLsdOffset, MAX_COPY_SIZE, false,
+                rawResult.charAt(0) == '-', null, true /* forcePrecision */,
                 false /* forceSciNotation */, false /* insertCommas */);
-        return KeyMaps.translateResult(formattedResult);
+        return KeyMaps.translateResult(formattedResult.toString());
     }
 
     /**
@@ -931,24 +955,25 @@ public class CalculatorResult extends AlignedTextView implements MenuItem.OnMenu
             setAccessibilityLiveRegion(ACCESSIBILITY_LIVE_REGION_POLITE);
         }
         int currentCharOffset = getCharOffset(mCurrentPos);
-        int lastDisplayedOffset[] = new int[1];
-        String result = getFormattedResult(currentCharOffset, maxChars, lastDisplayedOffset,
+        final StringBuilder result = mFormattedResult;
+        getFormattedResult(result, currentCharOffset, maxChars, mLastDisplayedOffsetResult,
                 mAppendExponent /* forcePrecision; preserve entire result */,
                 !mWholePartFits
                 &&  currentCharOffset == getCharOffset(mMinPos) /* forceSciNotation */,
                 mWholePartFits /* insertCommas */ );
-        int expIndex = result.indexOf('E');
-        result = KeyMaps.translateResult(result);
-        if (expIndex > 0 && result.indexOf('.') == -1) {
+        int expIndex = result.indexOf("E");
+        mTranslatedResult.setLength(0);
+        KeyMaps.translateResult(result, mTranslatedResult);
+        if (expIndex > 0 && mTranslatedResult.indexOf(".") == -1) {
           // Gray out exponent if used as position indicator
-            SpannableString formattedResult = new SpannableString(result);
-            formattedResult.setSpan(mExponentColorSpan, expIndex, result.length(),
+            SpannableString formattedResult = new SpannableString(mTranslatedResult);
+            formattedResult.setSpan(mExponentColorSpan, expIndex, formattedResult.length(),
                                     Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
             setText(formattedResult);
         } else {
-            setText(result);
+            setText(mTranslatedResult.toString());
         }
-        mLastDisplayedOffset = lastDisplayedOffset[0];
+        mLastDisplayedOffset = mLastDisplayedOffsetResult[0];
         mValid = true;
         setLongClickable(true);
     }
@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import com.hp.creals.CR;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * A process-wide cache of the most precise approximation computed so far for each
+ * ConstantRegistry constant, optionally persisted across process restarts.
+ *
+ * Registered constants are wrapped in a CachedCR, which serves any precision no finer than
+ * the cached one by rounding the cached approximation, and otherwise computes the
+ * approximation from the underlying CR and records it here.  The CR approximation contract
+ * is preserved: if a is within 1 of x * 2^-q, then a * 2^(q-p), correctly rounded, is within
+ * 1 of x * 2^-p for p > q.
+ *
+ * The persisted file is a compact binary list of entries, each consisting of a key, the
+ * precision, a CRC32 and the two's complement bytes of the approximation.  It is memory-mapped
+ * when first needed, and each entry is decoded and checked only when its constant is first
+ * used.  Entries are truncated to MAX_PERSISTED_BITS when saved, so the file stays small even
+ * after very deep scrolling.  All methods are thread-safe.
+ */
+final class ConstantCache {
+    private static final int MAGIC = 0x43524331;  // "CRC1"
+    // Must change whenever the meaning of keys changes.
+    private static final int VERSION = 1;
+    // Persisted approximations have at most about this many bits.  About 79,000 digits.
+    static final int MAX_PERSISTED_BITS = 1 << 18;
+    // Maximum number of persisted constants.  Limits the file to about 2 MB.
+    private static final int MAX_PERSISTED_ENTRIES = 64;
+    // Maximum number of constants whose approximations we keep in memory.
+    private static final int MAX_ENTRIES = 256;
+
+    /**
+     * An approximation to a constant, as returned by CR.get_appr(prec).
+     */
+    private static final class Entry {
+        final int prec;
+        final BigInteger appr;
+
+        Entry(int prec, BigInteger appr) {
+            this.prec = prec;
+            this.appr = appr;
+        }
+    }
+
+    // File holding persisted approximations, or null if we don't persist them.
+    private static File sFile;
+    // Persisted file contents, once mapped.  Position is meaningless; use absolute reads.
+    private static ByteBuffer sMapped;
+    // Offsets in sMapped of the persisted entries that have not been decoded yet.
+    private static final HashMap<Long, Integer> sPersisted = new HashMap<>();
+    // Best known approximation for each recently used constant.  Others are forgotten in
+    // least-recently-used order, so that a long session can't accumulate approximations for
+    // arbitrarily many square roots and logs.
+    private static final LinkedHashMap<Long, Entry> sEntries =
+            new LinkedHashMap<Long, Entry>(16, 0.75f, true /* access order */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    // Have the persistable parts of sEntries improved since the last save?
+    private static boolean sDirty;
+    // Serializes writers of sFile.
+    private static final Object sSaveLock = new Object();
+
+    private ConstantCache() {}
+
+    /**
+     * A constant whose approximations are cached here under a fixed key.
+     */
+    private static final class CachedCR extends CR {
+        private final long mKey;
+        private final CR mValue;
+
+        CachedCR(long key, CR value) {
+            mKey = key;
+            mValue = value;
+        }
+
+        @Override
+        protected BigInteger approximate(int p) {
+            final BigInteger cached = lookup(mKey, p);
+            if (cached != null) {
+                return cached;
+            }
+            final BigInteger result = mValue.get_appr(p);
+            record(mKey, p, result);
+            return result;
+        }
+    }
+
+    /**
+     * Return a CR with the same value as value, whose approximations are cached under key.
+     * Key must uniquely and permanently identify the constant, since it is persisted.
+     */
+    static CR wrap(long key, CR value) {
+        return new CachedCR(key, value);
+    }
+
+    /**
+     * Persist approximations in file, and use the ones already there.  Does no I/O.
+     */
+    static synchronized void setFile(File file) {
+        if (file.equals(sFile)) {
+            return;
+        }
+        sFile = file;
+        sMapped = null;
+        sPersisted.clear();
+    }
+
+    /**
+     * Return x * 2^-n, correctly rounded.
+     * @param n shift, > 0
+     */
+    private static BigInteger roundedShift(BigInteger x, int n) {
+        return x.shiftRight(n - 1).add(BigInteger.ONE).shiftRight(1);
+    }
+
+    /**
+     * Map sFile and index its entries, if we haven't tried yet.  A missing, unreadable, or
+     * obsolete file is silently ignored; it will be overwritten by the next save().
+     */
+    private static void mapFile() {
+        if (sMapped != null || sFile == null) {
+            return;
+        }
+        sMapped = ByteBuffer.allocate(0);  // Don't try again.
+        if (!sFile.exists()) {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(sFile, "r")) {
+            final FileChannel channel = raf.getChannel();
+            final ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (mapped.getInt() != MAGIC || mapped.getInt() != VERSION) {
+                return;
+            }
+            final int count = mapped.getInt();
+            final HashMap<Long, Integer> index = new HashMap<>();
+            for (int i = 0; i < count; ++i) {
+                final long key = mapped.getLong();
+                index.put(key, mapped.position());
+                mapped.position(mapped.position() + 8);  // Precision and CRC.
+                final int len = mapped.getInt();
+                if (len <= 0 || len > mapped.remaining()) {
+                    return;
+                }
+                mapped.position(mapped.position() + len);
+            }
+            sMapped = mapped;
+            sPersisted.putAll(index);
+        } catch (IOException|BufferUnderflowException|IllegalArgumentException e) {
+            // Treat as missing.
+        }
+    }
+
+    /**
+     * Decode the persisted entry at offset, or return null if it is corrupt.
+     */
+    private static Entry readEntry(int offset) {
+        final int prec = sMapped.getInt(offset);
+        final int crc = sMapped.getInt(offset + 4);
+        final int len = sMapped.getInt(offset + 8);
+        final byte[] bytes = new byte[len];
+        final ByteBuffer src = sMapped.duplicate();
+        src.position(offset + 12);
+        src.get(bytes);
+        final CRC32 check = new CRC32();
+        check.update(bytes, 0, len);
+        if ((int) check.getValue() != crc) {
+            return null;
+        }
+        return new Entry(prec, new BigInteger(bytes));
+    }
+
+    /**
+     * Return the best known entry for key, decoding it from the file if necessary.
+     */
+    private static Entry getEntry(long key) {
+        mapFile();
+        final Integer offset = sPersisted.remove(key);
+        if (offset != null) {
+            final Entry persisted = readEntry(offset);
+            if (persisted != null) {
+                final Entry current = sEntries.get(key);
+                if (current == null || current.prec > persisted.prec) {
+                    sEntries.put(key, persisted);
+                }
+            }
+        }
+        return sEntries.get(key);
+    }
+
+    /**
+     * Return an approximation of the constant with the given key to precision p, as for
+     * CR.get_appr(p), or null if we don't have a sufficiently precise one.
+     */
+    private static synchronized BigInteger lookup(long key, int p) {
+        final Entry e = getEntry(key);
+        if (e == null || e.prec > p) {
+            return null;
+        }
+        return e.prec == p ? e.appr : roundedShift(e.appr, p - e.prec);
+    }
+
+    /**
+     * Record appr as the approximation of the constant with the given key to precision p,
+     * if it's better than what we have.
+     */
+    private static synchronized void record(long key, int p, BigInteger appr) {
+        final Entry e = getEntry(key);
+        if (e != null && e.prec <= p) {
+            return;
+        }
+        sEntries.put(key, new Entry(p, appr));
+        if (e == null || e.prec > -MAX_PERSISTED_BITS) {
+            sDirty = true;
+        }
+    }
+
+    /**
+     * Are there approximations worth saving?
+     */
+    static synchronized boolean needsSave() {
+        return sDirty && sFile != null;
+    }
+
+    /**
+     * Write the best known approximations to the file set by setFile(), replacing it.  Does
+     * I/O, and may take a while; don't call from the UI thread.
+     * @return false if the write failed
+     */
+    static boolean save() {
+        synchronized (sSaveLock) {
+            final File file;
+            final List<Map.Entry<Long, Entry>> entries = new ArrayList<>();
+            synchronized (ConstantCache.class) {
+                if (!sDirty || sFile == null) {
+                    return true;
+                }
+                file = sFile;
+                // Decode everything still in the old file, so that we don't lose it.
+                for (Long key : new ArrayList<>(sPersisted.keySet())) {
+                    getEntry(key);
+                }
+                // In key order, so that pi and e are kept if there are too many.
+                entries.addAll(new TreeMap<>(sEntries).entrySet());
+                sDirty = false;
+            }
+            final int count = Math.min(entries.size(), MAX_PERSISTED_ENTRIES);
+            final File tmp = new File(file.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(count);
+                for (int i = 0; i < count; ++i) {
+                    final Entry e = entries.get(i).getValue();
+                    final int prec = Math.max(e.prec, -MAX_PERSISTED_BITS);
+                    final BigInteger appr = prec == e.prec ? e.appr
+                            : roundedShift(e.appr, prec - e.prec);
+                    final byte[] bytes = appr.toByteArray();
+                    final CRC32 check = new CRC32();
+                    check.update(bytes, 0, bytes.length);
+                    out.writeLong(entries.get(i).getKey());
+                    out.writeInt(prec);
+                    out.writeInt((int) check.getValue());
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            } catch (IOException e) {
+                tmp.delete();
+                synchronized (ConstantCache.class) {
+                    sDirty = true;
+                }
+                return false;
+            }
+            // Replacing the file leaves any existing mapping of the old one valid.
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                return false;
+            }
+            return true;
+        }
+    }
+}
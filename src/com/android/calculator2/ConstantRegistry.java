@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import com.hp.creals.CR;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The irrational constants that UnifiedReal recognizes in its mCrFactor position: pi, e,
+ * square roots of square-free integers, and natural logs of integers that are not perfect
+ * powers.  No two of them are rational multiples of each other, except possibly pi and e.
+ *
+ * Each constant is represented by a single interned CR, so that UnifiedReal can continue to
+ * recognize equal factors with ==, and a CR can be mapped back to its description with a hash
+ * lookup.  Square roots and logs are only weakly referenced by the registry, so that it holds
+ * only the constants that are still in use.  A constant that is no longer referenced is
+ * forgotten, and interned again as a new CR if it is needed later.  That's safe, since nothing
+ * is left to compare the new CR to the old one.  Approximations of all constants are cached,
+ * and possibly persisted, by ConstantCache.  All methods are thread-safe.
+ */
+final class ConstantRegistry {
+    // Largest square-free integer whose square root we represent symbolically.
+    static final long MAX_SQRT_ARG = 1 << 20;
+    // Largest integer whose natural log we represent symbolically.
+    static final long MAX_LN_ARG = 1 << 20;
+
+    // Name of e in exact results.  Distinct from 'e' and 'E', which also denote exponents, and
+    // are dropped or displayed as an exponent by KeyMaps.translateResult().
+    static final char E_CHAR = '\u212F';  // SCRIPT SMALL E
+
+    static final CR PI = ConstantCache.wrap(key(Constant.KIND_PI, 0), CR.PI);
+    static final CR E = ConstantCache.wrap(key(Constant.KIND_E, 0), CR.ONE.exp());
+
+    /**
+     * Description of a registered constant.
+     */
+    private static final class Constant {
+        static final int KIND_PI = 0;
+        static final int KIND_E = 1;
+        static final int KIND_SQRT = 2;
+        static final int KIND_LN = 3;
+
+        final int kind;
+        final long arg;  // Argument of sqrt or ln.  Unused otherwise.
+
+        Constant(int kind, long arg) {
+            this.kind = kind;
+            this.arg = arg;
+        }
+
+        String name() {
+            switch (kind) {
+                case KIND_PI:
+                    return "\u03C0";   // GREEK SMALL LETTER PI
+                case KIND_E:
+                    return String.valueOf(E_CHAR);
+                case KIND_SQRT:
+                    return "\u221A" /* SQUARE ROOT */ + arg;
+                case KIND_LN:
+                    return "ln(" + arg + ")";
+                default:
+                    throw new AssertionError("Bad constant kind");
+            }
+        }
+    }
+
+    /**
+     * A weak reference to an interned CR, which knows its entry in sSqrts or sLogs.
+     */
+    private static final class InternedRef extends WeakReference<CR> {
+        final ConcurrentHashMap<Long, InternedRef> mMap;
+        final long mArg;
+
+        InternedRef(CR value, ConcurrentHashMap<Long, InternedRef> map, long arg) {
+            super(value, sCollected);
+            mMap = map;
+            mArg = arg;
+        }
+    }
+
+    // Every registered CR that is still in use.  CR does not override equals(), so this is an
+    // identity map.  Its keys are weak, so that it doesn't keep constants alive.
+    private static final Map<CR, Constant> sConstants =
+            Collections.synchronizedMap(new WeakHashMap<CR, Constant>());
+    // Interned square roots and logs that may still be in use, indexed by argument.
+    private static final ConcurrentHashMap<Long, InternedRef> sSqrts = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Long, InternedRef> sLogs = new ConcurrentHashMap<>();
+    // References to collected constants, whose sSqrts or sLogs entries should be removed.
+    private static final ReferenceQueue<CR> sCollected = new ReferenceQueue<>();
+
+    static {
+        sConstants.put(PI, new Constant(Constant.KIND_PI, 0));
+        sConstants.put(E, new Constant(Constant.KIND_E, 0));
+    }
+
+    private ConstantRegistry() {}
+
+    /**
+     * Return a key that identifies the constant with the given kind and argument.  Used as
+     * both a display order and a persistent ConstantCache key.
+     */
+    private static long key(int kind, long arg) {
+        return ((long) kind << 32) + arg;
+    }
+
+    /**
+     * Return the CR interned as arg's entry in map, or null if there is none.
+     */
+    private static CR lookup(ConcurrentHashMap<Long, InternedRef> map, long arg) {
+        final InternedRef ref = map.get(arg);
+        return ref == null ? null : ref.get();
+    }
+
+    /**
+     * Remove the entries of collected constants from sSqrts and sLogs.
+     */
+    private static void removeCollected() {
+        InternedRef ref;
+        while ((ref = (InternedRef) sCollected.poll()) != null) {
+            ref.mMap.remove(ref.mArg, ref);
+        }
+    }
+
+    /**
+     * Add value as arg's entry in map, unless another thread got there first.  Return the
+     * entry.
+     */
+    private static CR intern(ConcurrentHashMap<Long, InternedRef> map, int kind, long arg,
+            CR value) {
+        removeCollected();
+        // Describe value before publishing it, so that any CR found in map is also in
+        // sConstants.
+        sConstants.put(value, new Constant(kind, arg));
+        final InternedRef ref = new InternedRef(value, map, arg);
+        while (true) {
+            final InternedRef old = map.putIfAbsent(arg, ref);
+            if (old == null) {
+                return value;
+            }
+            final CR winner = old.get();
+            if (winner != null) {
+                sConstants.remove(value);
+                return winner;
+            }
+            // The old entry's constant was collected.  Replace it.
+            if (map.replace(arg, old, ref)) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Return the interned CR for sqrt(n), or null if n is out of range.
+     * @param n square-free integer > 1
+     */
+    static CR sqrt(long n) {
+        if (n < 2 || n > MAX_SQRT_ARG) {
+            return null;
+        }
+        final CR result = lookup(sSqrts, n);
+        if (result != null) {
+            return result;
+        }
+        return intern(sSqrts, Constant.KIND_SQRT, n, ConstantCache.wrap(
+                key(Constant.KIND_SQRT, n), CR.valueOf(n).sqrt()));
+    }
+
+    /**
+     * Return the interned CR for ln(n), or null if n is out of range.
+     * @param n integer > 1 that is not a perfect power
+     */
+    static CR ln(long n) {
+        if (n < 2 || n > MAX_LN_ARG) {
+            return null;
+        }
+        final CR result = lookup(sLogs, n);
+        if (result != null) {
+            return result;
+        }
+        return intern(sLogs, Constant.KIND_LN, n, ConstantCache.wrap(
+                key(Constant.KIND_LN, n), CR.valueOf(n).ln()));
+    }
+
+    /**
+     * If cr is a registered square root, return its square.  Otherwise return 0.
+     */
+    static long squareOf(CR cr) {
+        final Constant c = sConstants.get(cr);
+        return c != null && c.kind == Constant.KIND_SQRT ? c.arg : 0;
+    }
+
+    /**
+     * If cr is a registered natural log, return its exponential.  Otherwise return 0.
+     */
+    static long expOf(CR cr) {
+        final Constant c = sConstants.get(cr);
+        return c != null && c.kind == Constant.KIND_LN ? c.arg : 0;
+    }
+
+    /**
+     * Is cr one of the constants described here?
+     */
+    static boolean isRegistered(CR cr) {
+        return sConstants.containsKey(cr);
+    }
+
+    /**
+     * Return a key that orders registered constants for display: pi, e, square roots, and
+     * then logs, each by argument.  Cr must be registered.
+     */
+    static long sortKey(CR cr) {
+        final Constant c = sConstants.get(cr);
+        return key(c.kind, c.arg);
+    }
+
+    /**
+     * Return the name of cr, or null if it is not registered.
+     */
+    static String name(CR cr) {
+        final Constant c = sConstants.get(cr);
+        return c == null ? null : c.name();
+    }
+}
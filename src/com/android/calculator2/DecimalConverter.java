@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Conversion of large BigIntegers to decimal, and the powers of ten needed for it.
+ *
+ * BigInteger.toString() may take time quadratic in the number of digits, which dominates
+ * reevaluation for results with tens of thousands of digits.  We instead split the number
+ * in half by dividing by a power of ten, and convert the halves recursively, so that most of
+ * the work is done by BigInteger division, which is faster for large operands.
+ *
+ * The powers of ten 10^(2^k) are computed once and shared, both by the conversion and by
+ * pow10(), which scales results by 10^n before conversion.  All methods are thread-safe.
+ */
+final class DecimalConverter {
+    // Numbers of at most this many bits are converted directly with BigInteger.toString().
+    private static final int SPLIT_BITS = 2048;
+    private static final double LOG10_2 = 0.30102999566398;
+
+    // sPowers[k] = 10^(2^k).  Extended by copying, so a published array is never modified.
+    private static volatile BigInteger[] sPowers = { BigInteger.TEN };
+
+    private DecimalConverter() {}
+
+    /**
+     * Return 10^(2^k).
+     */
+    private static BigInteger powerOfTen(int k) {
+        BigInteger[] powers = sPowers;
+        if (k < powers.length) {
+            return powers[k];
+        }
+        synchronized (DecimalConverter.class) {
+            powers = sPowers;
+            if (k >= powers.length) {
+                final BigInteger[] newPowers = Arrays.copyOf(powers, k + 1);
+                for (int i = powers.length; i <= k; ++i) {
+                    newPowers[i] = newPowers[i - 1].multiply(newPowers[i - 1]);
+                }
+                sPowers = powers = newPowers;
+            }
+            return powers[k];
+        }
+    }
+
+    /**
+     * Return 10^n, using the cached powers.
+     * @param n exponent, >= 0
+     */
+    static BigInteger pow10(int n) {
+        BigInteger result = null;
+        for (int k = 0; n != 0; ++k, n >>>= 1) {
+            if ((n & 1) != 0) {
+                result = result == null ? powerOfTen(k) : result.multiply(powerOfTen(k));
+            }
+        }
+        return result == null ? BigInteger.ONE : result;
+    }
+
+    /**
+     * Append the decimal representation of x >= 0 to sb, with leading zeroes to make it at
+     * least minDigits long.
+     */
+    private static void appendDecimal(StringBuilder sb, BigInteger x, int minDigits) {
+        if (x.bitLength() <= SPLIT_BITS) {
+            final String digits = x.toString();
+            for (int i = digits.length(); i < minDigits; ++i) {
+                sb.append('0');
+            }
+            sb.append(digits);
+            return;
+        }
+        // Split at 10^(2^k), with 2^k between a quarter and a half of the number of digits.
+        // Thus x >= 2^(x.bitLength() - 1) > 10^(2^k), and the quotient is nonzero.
+        final int k = 31 - Integer.numberOfLeadingZeros((int) (x.bitLength() * LOG10_2 / 2));
+        final int lowDigits = 1 << k;
+        final BigInteger[] quotAndRem = x.divideAndRemainder(powerOfTen(k));
+        appendDecimal(sb, quotAndRem[0], minDigits - lowDigits);
+        appendDecimal(sb, quotAndRem[1], lowDigits);
+    }
+
+    /**
+     * Return the decimal representation of x.  Equivalent to x.toString().
+     */
+    static String toString(BigInteger x) {
+        if (x.bitLength() <= SPLIT_BITS) {
+            return x.toString();
+        }
+        final StringBuilder sb = new StringBuilder((int) (x.bitLength() * LOG10_2) + 2);
+        if (x.signum() < 0) {
+            sb.append('-');
+        }
+        appendDecimal(sb, x.abs(), 1);
+        return sb.toString();
+    }
+
+    /**
+     * Return the decimal representation of scaled / 10^n, with exactly n digits to the right
+     * of the decimal point, and at least one to the left, as for toStringTruncated().
+     * @param scaled absolute value of the number, scaled by 10^n
+     * @param negative add a leading minus sign
+     * @param n number of digits to the right of the decimal point, >= 0
+     */
+    static String toStringScaled(BigInteger scaled, boolean negative, int n) {
+        final StringBuilder sb = new StringBuilder((int) (scaled.bitLength() * LOG10_2) + n + 3);
+        if (negative) {
+            sb.append('-');
+        }
+        appendDecimal(sb, scaled, n + 1);
+        sb.insert(sb.length() - n, '.');
+        return sb.toString();
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+/**
+ * A compact representation of a decimal approximation, as produced by
+ * UnifiedReal.toStringTruncated(): an optional leading minus sign, followed by digits containing
+ * at most one decimal point.  Digits are stored as 4-bit nibbles, a quarter of the space
+ * needed by a String.
+ *
+ * A DigitBuffer is an immutable CharSequence.  Appending digits produces a new DigitBuffer,
+ * which normally shares storage with the old one, so extending a long result does not copy it.
+ * Storage is append-only; the characters seen by an existing instance never change.  Thus
+ * instances may be freely shared, e.g. between Evaluator.ExprInfo and ResultCache.
+ * Appending is expected to happen on a single thread.
+ */
+final class DigitBuffer implements CharSequence {
+
+    /**
+     * Nibble storage, shared between instances.
+     */
+    private static final class Storage {
+        // Digit i is in the low nibble of byte i/2 if i is even, high nibble otherwise.
+        byte[] mNibbles;
+        // Number of digits stored.  Instances may only append if they include all of them.
+        int mDigits;
+
+        Storage(int capacity) {
+            mNibbles = new byte[(capacity + 1) / 2];
+        }
+
+        int get(int i) {
+            final int b = mNibbles[i >> 1];
+            return (i & 1) == 0 ? b & 0xf : (b >> 4) & 0xf;
+        }
+
+        void add(int digit) {
+            if ((mDigits >> 1) >= mNibbles.length) {
+                final byte[] newNibbles = new byte[Math.max(2 * mNibbles.length, 16)];
+                System.arraycopy(mNibbles, 0, newNibbles, 0, mNibbles.length);
+                mNibbles = newNibbles;
+            }
+            final int i = mDigits >> 1;
+            if ((mDigits & 1) == 0) {
+                mNibbles[i] = (byte) digit;
+            } else {
+                mNibbles[i] |= (byte) (digit << 4);
+            }
+            ++mDigits;
+        }
+    }
+
+    // Rough size of a Storage object, excluding its digits.
+    private static final int STORAGE_BYTES = 32;
+
+    private final Storage mStorage;
+    private final int mDigits;  // Number of digits in mStorage that belong to this.
+    private final boolean mNegative;
+    private final int mDotIndex;  // Index of decimal point in this CharSequence, or -1.
+
+    private DigitBuffer(Storage storage, int digits, boolean negative, int dotIndex) {
+        mStorage = storage;
+        mDigits = digits;
+        mNegative = negative;
+        mDotIndex = dotIndex;
+    }
+
+    /**
+     * Return a DigitBuffer with the same characters as s.
+     * @throws IllegalArgumentException if s is not a plain decimal number
+     */
+    public static DigitBuffer valueOf(CharSequence s) {
+        final int len = s.length();
+        final boolean negative = len > 0 && s.charAt(0) == '-';
+        final int start = negative ? 1 : 0;
+        return new DigitBuffer(new Storage(len), 0, negative, -1).append(s, start, len);
+    }
+
+    /**
+     * Return the index of the decimal point in a decimal number, or -1 if there is none.
+     * Fast if s is a DigitBuffer.
+     */
+    public static int dotIndexOf(CharSequence s) {
+        if (s instanceof DigitBuffer) {
+            return ((DigitBuffer) s).mDotIndex;
+        }
+        return s.toString().indexOf('.');
+    }
+
+    /**
+     * Return the index of the decimal point, or -1 if there is none.
+     */
+    public int getDotIndex() {
+        return mDotIndex;
+    }
+
+    @Override
+    public int length() {
+        return mDigits + (mNegative ? 1 : 0) + (mDotIndex >= 0 ? 1 : 0);
+    }
+
+    @Override
+    public char charAt(int i) {
+        if (i < 0 || i >= length()) {
+            throw new IndexOutOfBoundsException("DigitBuffer index " + i);
+        }
+        if (i == mDotIndex) {
+            return '.';
+        }
+        if (mNegative) {
+            if (i == 0) {
+                return '-';
+            }
+            --i;
+        }
+        if (mDotIndex >= 0 && i >= mDotIndex) {
+            --i;
+        }
+        return (char) ('0' + mStorage.get(i));
+    }
+
+    /**
+     * Return the indicated subsequence as a String.
+     */
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException("DigitBuffer range " + start + "-" + end);
+        }
+        final StringBuilder result = new StringBuilder(end - start);
+        for (int i = start; i < end; ++i) {
+            result.append(charAt(i));
+        }
+        return result.toString();
+    }
+
+    @Override
+    public String toString() {
+        return subSequence(0, length()).toString();
+    }
+
+    /**
+     * Return a DigitBuffer consisting of this followed by s[start, end).
+     * The appended characters must be digits, plus possibly a decimal point if this does not
+     * yet contain one.
+     */
+    public DigitBuffer append(CharSequence s, int start, int end) {
+        final Storage storage = claimStorage(end - start);
+        int digits = mDigits;
+        int dotIndex = mDotIndex;
+        int len = length();
+        for (int i = start; i < end; ++i) {
+            final char c = s.charAt(i);
+            if (c == '.' && dotIndex < 0) {
+                dotIndex = len;
+            } else if (c >= '0' && c <= '9') {
+                storage.add(c - '0');
+                ++digits;
+            } else {
+                throw new IllegalArgumentException("Not a decimal number: " + s);
+            }
+            ++len;
+        }
+        return new DigitBuffer(storage, digits, mNegative, dotIndex);
+    }
+
+    /**
+     * Return a DigitBuffer consisting of this followed by n copies of the digit c.
+     */
+    public DigitBuffer appendRepeated(char c, int n) {
+        if (c < '0' || c > '9') {
+            throw new IllegalArgumentException("Not a digit: " + c);
+        }
+        final Storage storage = claimStorage(n);
+        for (int i = 0; i < n; ++i) {
+            storage.add(c - '0');
+        }
+        return new DigitBuffer(storage, mDigits + n, mNegative, mDotIndex);
+    }
+
+    /**
+     * Return a DigitBuffer with the same characters as s.  If s starts with this, we share
+     * storage with this, and only the additional characters are converted.
+     */
+    public DigitBuffer extendTo(String s) {
+        final int len = length();
+        if (s.length() < len) {
+            return valueOf(s);
+        }
+        for (int i = 0; i < len; ++i) {
+            if (s.charAt(i) != charAt(i)) {
+                return valueOf(s);
+            }
+        }
+        return append(s, len, s.length());
+    }
+
+    /**
+     * Return an object identifying our storage, which may be shared with other instances.
+     * Used to count shared storage only once.
+     */
+    Object storageKey() {
+        return mStorage;
+    }
+
+    /**
+     * Return the approximate size in bytes of our storage, including any part of it used only
+     * by other instances.
+     */
+    int storageBytes() {
+        return STORAGE_BYTES + mStorage.mNibbles.length;
+    }
+
+    /**
+     * Return storage to which we can append at least n digits following ours.  Normally
+     * mStorage.  If another instance already appended to mStorage, a copy of our part of it.
+     */
+    private Storage claimStorage(int n) {
+        if (mStorage.mDigits == mDigits) {
+            return mStorage;
+        }
+        final Storage result = new Storage(mDigits + n);
+        System.arraycopy(mStorage.mNibbles, 0, result.mNibbles, 0, (mDigits + 1) / 2);
+        result.mDigits = mDigits;
+        if ((mDigits & 1) != 0) {
+            // Clear the other instance's digit in the high nibble of the last byte.
+            result.mNibbles[mDigits >> 1] &= 0xf;
+        }
+        return result;
+    }
+}
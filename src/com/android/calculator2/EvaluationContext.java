@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import com.hp.creals.CR;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cancellation token and work budget for a single evaluation.
+ *
+ * An EvaluationContext is attached to each thread working on an evaluation.  The expensive
+ * loops in BoundedRational and UnifiedReal call the static check and charge methods, which
+ * consult the context attached to the current thread.  Thus the context does not have to be
+ * passed through the arithmetic interfaces.
+ *
+ * Work is measured in units of 64x64-bit word products.  See multiplyWork() for the cost of a
+ * multiplication.  That model never charges more than BigInteger actually does, so that the
+ * static estimates in CalculatorExpr, which are lower bounds on what will be charged, never
+ * refuse an expression that could have been evaluated within its budget.  Charges are
+ * deterministic, and let us refuse a hopeless multiplication before starting it.  Work done
+ * inside CR approximation functions is not accounted for; those still rely on thread
+ * interrupts, which cancel() also delivers to all attached threads.
+ *
+ * Cancellation and budget overruns result in a CR.AbortedException, or the more specific
+ * BudgetExceededException, to be consistent with CR's own cancellation.
+ */
+public class EvaluationContext {
+
+    /**
+     * Thrown when an evaluation exceeds its work budget.  Should be treated as a timeout.
+     */
+    public static class BudgetExceededException extends CR.AbortedException {
+        public BudgetExceededException() {
+            super("Evaluation work budget exceeded");
+        }
+    }
+
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    // Used when no context was attached.  Never cancelled; not charged.
+    private static final EvaluationContext UNBOUNDED = new EvaluationContext(UNLIMITED);
+
+    private static final ThreadLocal<EvaluationContext> sCurrent =
+            new ThreadLocal<EvaluationContext>() {
+                @Override
+                protected EvaluationContext initialValue() {
+                    return UNBOUNDED;
+                }
+            };
+
+    private final long mBudget;
+    private final AtomicLong mWorkDone = new AtomicLong();
+    private volatile boolean mCancelled;
+    // Threads currently attached to this context.  Protected by this.
+    private final ArrayList<Thread> mThreads = new ArrayList<Thread>();
+
+    /**
+     * @param budget maximum work units, or UNLIMITED
+     */
+    public EvaluationContext(long budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * Return the context attached to the current thread.  Never null.
+     */
+    public static EvaluationContext current() {
+        return sCurrent.get();
+    }
+
+    /**
+     * Make this the current thread's context.
+     * Must be paired with a call to detach(), passing the returned value.
+     */
+    public EvaluationContext attach() {
+        final EvaluationContext previous = sCurrent.get();
+        final Thread me = Thread.currentThread();
+        synchronized (this) {
+            mThreads.add(me);
+            if (mCancelled) {
+                me.interrupt();
+            }
+        }
+        sCurrent.set(this);
+        return previous;
+    }
+
+    /**
+     * Undo the corresponding attach() call.
+     * Clears any interrupt delivered by cancel(), so that the thread can safely be reused.
+     */
+    public void detach(EvaluationContext previous) {
+        synchronized (this) {
+            mThreads.remove(Thread.currentThread());
+            if (mCancelled) {
+                Thread.interrupted();
+            }
+        }
+        sCurrent.set(previous);
+    }
+
+    /**
+     * Request that all work associated with this context stop as soon as possible.
+     * Callable from any thread.
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            for (Thread t : mThreads) {
+                t.interrupt();
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public long getBudget() {
+        return mBudget;
+    }
+
+    /**
+     * Return the amount of work charged so far.
+     */
+    public long getWorkDone() {
+        return mWorkDone.get();
+    }
+
+    private void check() {
+        if (mCancelled || Thread.interrupted()) {
+            throw new CR.AbortedException();
+        }
+    }
+
+    private void charge(long units) {
+        check();
+        if (mBudget != UNLIMITED && mWorkDone.addAndGet(units) > mBudget) {
+            throw new BudgetExceededException();
+        }
+    }
+
+    /**
+     * Throw CR.AbortedException if the current evaluation was cancelled or interrupted.
+     */
+    public static void checkCancelled() {
+        current().check();
+    }
+
+    // Operand size in words above which we assume BigInteger multiplies faster than schoolbook.
+    // OpenJDK switches to Karatsuba at 40 words and Toom-Cook 3 at 120; BoringSSL, which backs
+    // BigInteger on Android, uses Karatsuba down to 8-word pieces.
+    private static final double FAST_MULTIPLY_WORDS = 8.0;
+    // Exponent of Toom-Cook 3 multiplication, smaller than that of Karatsuba.
+    private static final double FAST_MULTIPLY_EXPONENT = Math.log(5.0) / Math.log(3.0);
+
+    /**
+     * Return the work charged for multiplying numbers with the given bit lengths.
+     * Schoolbook cost for small operands.  For larger ones, the cost of splitting the longer
+     * operand into pieces as long as the shorter one, and multiplying each piece by Toom-Cook 3
+     * down to FAST_MULTIPLY_WORDS.  Since both libraries above recurse no further than that, and
+     * use algorithms with no smaller exponent, this is a lower bound on their cost.  It is
+     * monotonic in both arguments.
+     */
+    public static double multiplyWork(double bits1, double bits2) {
+        final double small = Math.min(bits1, bits2) / 64.0 + 1.0;
+        final double large = Math.max(bits1, bits2) / 64.0 + 1.0;
+        if (small <= FAST_MULTIPLY_WORDS) {
+            return small * large;
+        }
+        return large / small * FAST_MULTIPLY_WORDS * FAST_MULTIPLY_WORDS
+                * Math.pow(small / FAST_MULTIPLY_WORDS, FAST_MULTIPLY_EXPONENT);
+    }
+
+    /**
+     * Return the largest bit length of numbers that can be squared with the given work.
+     * The inverse of multiplyWork(bits, bits).
+     */
+    public static double maxSquareBits(double work) {
+        final double words = work <= FAST_MULTIPLY_WORDS * FAST_MULTIPLY_WORDS
+                ? Math.sqrt(work)
+                : FAST_MULTIPLY_WORDS * Math.pow(work / (FAST_MULTIPLY_WORDS
+                        * FAST_MULTIPLY_WORDS), 1.0 / FAST_MULTIPLY_EXPONENT);
+        return Math.max(words - 1.0, 0.0) * 64.0;
+    }
+
+    /**
+     * Account for a multiplication of numbers with the given bit lengths, which we are about to
+     * perform.  Throws if the evaluation was cancelled or the budget would be exceeded.
+     */
+    public static void chargeMultiply(int bits1, int bits2) {
+        current().charge((long) Math.ceil(multiplyWork(bits1, bits2)));
+    }
+
+    /**
+     * Throw BudgetExceededException if the given amount of work, which we will charge as we
+     * go, would exceed what is left of the budget.  Charges nothing itself.  This avoids
+     * starting a computation we will not be allowed to finish.
+     */
+    public static void checkAvailable(double work) {
+        final EvaluationContext ec = current();
+        ec.check();
+        if (ec.mBudget != UNLIMITED && ec.mWorkDone.get() + work > ec.mBudget) {
+            throw new BudgetExceededException();
+        }
+    }
+
+    /**
+     * Account for n iterations of a loop not otherwise charged, e.g. with one bignum
+     * division each.
+     */
+    public static void chargeIterations(long n) {
+        current().charge(n);
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide timers and counters for the evaluation pipeline.
+ *
+ * Timers record latencies in a histogram with power-of-two nanosecond buckets, which is cheap
+ * to update from any thread and good enough to estimate percentiles within a factor of two.
+ * Typical use is
+ *
+ *     final long start = EvaluationMetrics.start();
+ *     try { ... } finally { EvaluationMetrics.stop(EvaluationMetrics.TIMER_EVAL, start); }
+ *
+ * Counters are incremented with count().  Nothing is reported on its own; report() passes the
+ * current values to a Sink, e.g. one that prints them for a debug dump, or one that collects
+ * them in a test.  Like EvaluationContext, this is static so that it does not have to be
+ * passed through the arithmetic interfaces.  All methods are thread-safe.
+ */
+public final class EvaluationMetrics {
+
+    // Timers.
+    public static final int TIMER_EVAL = 0;  // CalculatorExpr.eval().
+    public static final int TIMER_TO_STRING = 1;  // UnifiedReal.toStringTruncated().
+    public static final int TIMER_PREFERRED_PREC = 2;  // Evaluator.getPreferredPrec().
+    public static final int TIMER_ENSURE_CACHE_PREC = 3;  // Evaluator.ensureCachePrec().
+    public static final int TIMER_DB_ADD_ROW = 4;  // ExpressionDB.addRow().
+    public static final int TIMER_DB_GET_ROW = 5;  // ExpressionDB.getRow().
+    // Start of an initial evaluation to delivery of its result, e.g. "=" to onEvaluate().
+    public static final int TIMER_INITIAL_EVALUATION = 6;
+    // Start of a reevaluation to delivery of its result to onReevaluate().
+    public static final int TIMER_REEVALUATION = 7;
+    private static final String[] TIMER_NAMES = {
+        "eval", "toStringTruncated", "getPreferredPrec", "ensureCachePrec", "db.addRow",
+        "db.getRow", "initialEvaluation", "reevaluation"
+    };
+
+    // Counters.
+    public static final int COUNT_EVALUATIONS = 0;  // AsyncEvaluators started.
+    public static final int COUNT_REEVALUATIONS = 1;  // AsyncReevaluators started.
+    public static final int COUNT_RESULT_CACHE_HITS = 2;
+    public static final int COUNT_RESULT_CACHE_MISSES = 3;
+    public static final int COUNT_ERRORS = 4;  // Evaluations reporting an error other than timeout.
+    // Timeouts, by cause.
+    public static final int COUNT_TIMEOUT_CLOCK = 5;  // Ran out of time.
+    public static final int COUNT_TIMEOUT_BUDGET = 6;  // Exceeded EvaluationContext budget.
+    public static final int COUNT_TIMEOUT_ESTIMATE = 7;  // Refused based on cost estimate.
+    public static final int COUNT_TIMEOUT_TOO_BIG = 8;  // Result too big to display.
+    // Cancellations, by cause.
+    public static final int COUNT_CANCEL_REQUESTED = 9;  // Evaluator.cancel(index).
+    public static final int COUNT_CANCEL_ALL = 10;  // Evaluator.cancelAll().
+    public static final int COUNT_CANCEL_NON_MAIN = 11;  // Evaluator.cancelNonMain().
+    public static final int COUNT_CANCEL_PREEMPTED = 12;  // Restarted by EvaluationScheduler.
+    public static final int COUNT_CANCEL_RESTARTED = 13;  // Replaced by a more precise request.
+    private static final String[] COUNTER_NAMES = {
+        "evaluations", "reevaluations", "resultCache.hits", "resultCache.misses", "errors",
+        "timeout.clock", "timeout.budget", "timeout.estimate", "timeout.tooBig",
+        "cancel.requested", "cancel.all", "cancel.nonMain", "cancel.preempted",
+        "cancel.restarted"
+    };
+
+    // Bucket i > 0 counts latencies in [2^(i-1), 2^i) nanoseconds.  Bucket 0 counts zero.
+    private static final int BUCKETS = 64;
+
+    /**
+     * Receives the values of all timers and counters from report().
+     */
+    public interface Sink {
+        void counter(String name, long value);
+        void timer(TimerStats stats);
+    }
+
+    /**
+     * A snapshot of a single timer.  Immutable.
+     */
+    public static final class TimerStats {
+        public final String name;
+        public final long count;
+        public final long totalNanos;
+        public final long maxNanos;
+        private final long[] mBuckets;
+
+        private TimerStats(String name, long count, long totalNanos, long maxNanos,
+                long[] buckets) {
+            this.name = name;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            mBuckets = buckets;
+        }
+
+        public long getMeanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        /**
+         * Return an upper bound on the q quantile in nanoseconds, off by at most a factor of two.
+         * @param q fraction between 0 and 1, e.g. 0.99
+         */
+        public long getPercentileNanos(double q) {
+            long total = 0;
+            for (long b : mBuckets) {
+                total += b;
+            }
+            // The snapshot is not atomic, so total may differ slightly from count.
+            final long rank = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; ++i) {
+                seen += mBuckets[i];
+                if (seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : Math.min(maxNanos, (1L << i) - 1);
+                }
+            }
+            return maxNanos;
+        }
+    }
+
+    private static final class Timer {
+        final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        final AtomicLong mCount = new AtomicLong();
+        final AtomicLong mTotal = new AtomicLong();
+        final AtomicLong mMax = new AtomicLong();
+
+        void record(long nanos) {
+            mBuckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+            mCount.incrementAndGet();
+            mTotal.addAndGet(nanos);
+            long max;
+            while (nanos > (max = mMax.get()) && !mMax.compareAndSet(max, nanos)) { }
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; ++i) {
+                mBuckets.set(i, 0);
+            }
+            mCount.set(0);
+            mTotal.set(0);
+            mMax.set(0);
+        }
+
+        TimerStats snapshot(String name) {
+            final long[] buckets = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; ++i) {
+                buckets[i] = mBuckets.get(i);
+            }
+            return new TimerStats(name, mCount.get(), mTotal.get(), mMax.get(), buckets);
+        }
+    }
+
+    private static final Timer[] sTimers = new Timer[TIMER_NAMES.length];
+    static {
+        for (int i = 0; i < sTimers.length; ++i) {
+            sTimers[i] = new Timer();
+        }
+    }
+    private static final AtomicLongArray sCounters = new AtomicLongArray(COUNTER_NAMES.length);
+
+    private EvaluationMetrics() {}
+
+    /**
+     * Return a start time to be passed to stop().
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the time elapsed since start, which was returned by start().
+     * @param timer one of the TIMER_ constants
+     */
+    public static void stop(int timer, long start) {
+        sTimers[timer].record(Math.max(System.nanoTime() - start, 0));
+    }
+
+    /**
+     * @param counter one of the COUNT_ constants
+     */
+    public static void count(int counter) {
+        sCounters.incrementAndGet(counter);
+    }
+
+    /**
+     * Pass the current value of every timer and counter to sink.
+     */
+    public static void report(Sink sink) {
+        for (int i = 0; i < sTimers.length; ++i) {
+            sink.timer(sTimers[i].snapshot(TIMER_NAMES[i]));
+        }
+        for (int i = 0; i < COUNTER_NAMES.length; ++i) {
+            sink.counter(COUNTER_NAMES[i], sCounters.get(i));
+        }
+    }
+
+    /**
+     * Reset all timers and counters to zero, e.g. at the start of a test.
+     */
+    public static void reset() {
+        for (Timer t : sTimers) {
+            t.reset();
+        }
+        for (int i = 0; i < COUNTER_NAMES.length; ++i) {
+            sCounters.set(i, 0);
+        }
+    }
+
+    /**
+     * Print all timers that were used, and all nonzero counters.
+     */
+    public static void dump(final String prefix, final PrintWriter pw) {
+        pw.println(prefix + "Evaluation metrics (times in microseconds):");
+        report(new Sink() {
+            @Override
+            public void counter(String name, long value) {
+                if (value != 0) {
+                    pw.println(prefix + "  " + name + ": " + value);
+                }
+            }
+
+            @Override
+            public void timer(TimerStats stats) {
+                if (stats.count != 0) {
+                    pw.println(prefix + "  " + stats.name + ": n=" + stats.count
+                            + " mean=" + stats.getMeanNanos() / 1000
+                            + " p50<=" + stats.getPercentileNanos(0.5) / 1000
+                            + " p99<=" + stats.getPercentileNanos(0.99) / 1000
+                            + " max=" + stats.maxNanos / 1000);
+                }
+            }
+        });
+    }
+}
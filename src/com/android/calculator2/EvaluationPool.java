@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * The ForkJoinPool shared by all computations that split a single evaluation into parallel
+ * tasks, i.e. embedded expressions and large factorials.  A single pool bounds the number of
+ * extra runnable threads by the number of cores.
+ *
+ * This class doesn't depend on the Android framework, so that the arithmetic can be
+ * benchmarked on the host.  Instead EvaluationScheduler installs a thread initializer that
+ * gives pool threads the same background priority as its own workers, so that they don't
+ * compete with the UI thread.
+ */
+final class EvaluationPool {
+    // Run by each pool thread when it starts.  May be null.
+    private static volatile Runnable sThreadInitializer;
+
+    private static ForkJoinPool sPool;
+
+    private EvaluationPool() {}
+
+    /**
+     * A pool thread that runs sThreadInitializer before doing anything else.
+     */
+    private static final class WorkerThread extends ForkJoinWorkerThread {
+        WorkerThread(ForkJoinPool pool) {
+            super(pool);
+        }
+
+        @Override
+        protected void onStart() {
+            super.onStart();
+            final Runnable initializer = sThreadInitializer;
+            if (initializer != null) {
+                initializer.run();
+            }
+        }
+    }
+
+    /**
+     * Run initializer at the start of each subsequently started pool thread.  Threads are
+     * started lazily, and restarted after being idle, so this should be called before the pool
+     * is first used.
+     */
+    static void setThreadInitializer(Runnable initializer) {
+        sThreadInitializer = initializer;
+    }
+
+    /**
+     * Return the shared pool, creating it if necessary.
+     */
+    static synchronized ForkJoinPool get() {
+        if (sPool == null) {
+            sPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                    new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                        @Override
+                        public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                            return new WorkerThread(pool);
+                        }
+                    }, null /* default exception handler */, false /* not async */);
+        }
+        return sPool;
+    }
+}
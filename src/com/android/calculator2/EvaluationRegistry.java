@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The set of background evaluations the Evaluator currently has in flight, with a description
+ * of each.  Lets the Evaluator cancel groups of evaluations without looking at every
+ * expression it has cached, and lets the UI or a debug dump see what is using the CPU.
+ *
+ * Evaluations are keyed by the object they compute a result for; in the Evaluator that is the
+ * ExprInfo.  There is at most one evaluation per key.  Updates happen on the UI thread, but
+ * all methods are thread-safe, so queries may come from anywhere.
+ */
+public class EvaluationRegistry<K> {
+
+    // Kinds of evaluation.
+    public static final int KIND_INITIAL = 0;  // AsyncEvaluator: first evaluation.
+    public static final int KIND_REEVALUATION = 1;  // AsyncReevaluator: more digits.
+
+    /**
+     * Description of a single in-flight evaluation.  Immutable.
+     */
+    public static final class Record {
+        public final long index;  // Evaluator expression index.
+        public final int kind;  // One of the KIND_ constants.
+        public final int precOffset;  // Requested number of digits to the right of the point.
+        public final int priority;  // EvaluationScheduler priority.
+        public final long startTime;  // SystemClock.uptimeMillis() at registration.
+
+        public Record(long index, int kind, int precOffset, int priority) {
+            this.index = index;
+            this.kind = kind;
+            this.precOffset = precOffset;
+            this.priority = priority;
+            this.startTime = SystemClock.uptimeMillis();
+        }
+
+        /**
+         * Return the time in milliseconds since the evaluation was started.
+         */
+        public long getAge() {
+            return SystemClock.uptimeMillis() - startTime;
+        }
+
+        @Override
+        public String toString() {
+            return "index=" + index + " kind=" + (kind == KIND_INITIAL ? "initial" : "reevaluation")
+                    + " precOffset=" + precOffset + " priority=" + priority
+                    + " age=" + getAge() + "ms";
+        }
+    }
+
+    // In registration order.  Protected by this.
+    private final LinkedHashMap<K, Record> mActive = new LinkedHashMap<K, Record>();
+
+    /**
+     * Record that an evaluation for key has started, replacing any previous one.
+     */
+    public synchronized void add(K key, Record record) {
+        mActive.put(key, record);
+    }
+
+    /**
+     * Record that the evaluation for key finished or was cancelled.  Harmless if there is none.
+     */
+    public synchronized void remove(K key) {
+        mActive.remove(key);
+    }
+
+    /**
+     * Return the Record for the evaluation associated with key, or null.
+     */
+    public synchronized Record get(K key) {
+        return mActive.get(key);
+    }
+
+    public synchronized int size() {
+        return mActive.size();
+    }
+
+    /**
+     * Return a snapshot of the keys with active evaluations, oldest first.
+     * Callers may remove entries while iterating over the result.
+     */
+    public synchronized List<K> getKeys() {
+        return new ArrayList<K>(mActive.keySet());
+    }
+
+    /**
+     * Return a snapshot of the active evaluations, oldest first.
+     */
+    public synchronized List<Record> getRecords() {
+        return new ArrayList<Record>(mActive.values());
+    }
+
+    /**
+     * Print one line per active evaluation.
+     */
+    public void dump(String prefix, PrintWriter pw) {
+        final List<Record> records = getRecords();
+        pw.println(prefix + records.size() + " active evaluation(s)");
+        for (Record r : records) {
+            pw.println(prefix + "  " + r);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs the Evaluator's background tasks on a small pool of worker threads, in priority order.
+ * Tasks are started with AsyncTask.executeOnExecutor(), using the Executor returned by
+ * executorFor().  Lower priority values are more urgent.  Tasks with the same priority are run
+ * in submission order.
+ *
+ * If a task is submitted while all workers are busy, and a running task with a less urgent
+ * priority was marked preemptible, we ask that task to get out of the way by calling its
+ * preempt() method.  It is expected to cancel itself, and typically resubmit an equivalent task,
+ * which will then wait its turn behind the more urgent work.  Thus the latency of the main
+ * expression does not depend on how much history evaluation is queued.
+ *
+ * executorFor() and the resulting Executor should only be used from the UI thread, as required
+ * by AsyncTask.  preempt() callbacks are invoked synchronously on that thread.
+ */
+public class EvaluationScheduler {
+
+    // Priority classes, most urgent first.
+    public static final int PRIORITY_REQUIRED = 0;  // Main result explicitly requested by user.
+    public static final int PRIORITY_SPECULATIVE = 1;  // Unrequested "instant" main result.
+    public static final int PRIORITY_VISIBLE_HISTORY = 2;  // Visible history entries.
+    public static final int PRIORITY_PREFETCH = 3;  // Anything not currently displayed.
+
+    /**
+     * A running task that can be asked to stop in favor of more urgent work.
+     */
+    public interface Preemptible {
+        /**
+         * Cancel the task and, if still needed, resubmit it.  Called on the UI thread.
+         */
+        void preempt();
+    }
+
+    private static EvaluationScheduler sInstance;
+
+    static {
+        // Computations split across the EvaluationPool should not compete with the UI thread
+        // either.
+        EvaluationPool.setThreadInitializer(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            }
+        });
+    }
+
+    /**
+     * Return the process-wide scheduler, creating it if necessary.
+     */
+    public static synchronized EvaluationScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new EvaluationScheduler(defaultWorkerCount());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Default number of workers.  We want at least two, so that a long history evaluation
+     * cannot single-handedly delay the main expression, but we don't want to use every core
+     * on larger devices.
+     */
+    private static int defaultWorkerCount() {
+        return Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+    }
+
+    /**
+     * A submitted task.  Also serves as the Executor passed to executeOnExecutor(), which
+     * immediately hands us the task's Runnable.
+     */
+    private class Job implements Executor, Comparable<Job> {
+        final int mPriority;
+        final Preemptible mPreemptible;  // Null if the task may not be preempted.
+        long mSequence;  // Submission order, to break priority ties.
+        Runnable mRunnable;
+        boolean mPreempted;  // preempt() was already requested.  Protected by mLock.
+
+        Job(int priority, Preemptible preemptible) {
+            mPriority = priority;
+            mPreemptible = preemptible;
+        }
+
+        @Override
+        public void execute(Runnable r) {
+            if (mRunnable != null) {
+                throw new AssertionError("Executor reused");
+            }
+            mRunnable = r;
+            submit(this);
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    private final Object mLock = new Object();
+    // All remaining fields are protected by mLock.
+    private final PriorityQueue<Job> mQueue = new PriorityQueue<Job>();
+    private final ArrayList<Job> mRunning = new ArrayList<Job>();
+    private int mWorkerCount;  // Maximum number of worker threads.
+    private int mLiveWorkers;  // Worker threads started and not yet retired.
+    private int mIdleWorkers;  // Worker threads waiting for work.
+    private long mNextSequence;
+    private int mNextWorkerId;
+
+    // Package-private; normally accessed via getInstance().
+    EvaluationScheduler(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("Need at least one worker");
+        }
+        mWorkerCount = workerCount;
+    }
+
+    /**
+     * Return an Executor that runs a single task at the given priority.
+     * @param priority one of the PRIORITY_ constants
+     * @param preemptible callback used to preempt the task, or null if it should run to
+     *        completion once started.
+     */
+    public Executor executorFor(int priority, Preemptible preemptible) {
+        return new Job(priority, preemptible);
+    }
+
+    /**
+     * Change the maximum number of worker threads.
+     * Excess workers retire once they finish their current task.
+     */
+    public void setWorkerCount(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("Need at least one worker");
+        }
+        synchronized (mLock) {
+            mWorkerCount = workerCount;
+            while (mLiveWorkers < mWorkerCount && mQueue.size() > mIdleWorkers) {
+                startWorker();
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    public int getWorkerCount() {
+        synchronized (mLock) {
+            return mWorkerCount;
+        }
+    }
+
+    private void submit(Job job) {
+        Job victim = null;
+        synchronized (mLock) {
+            job.mSequence = mNextSequence++;
+            mQueue.add(job);
+            if (mQueue.size() > mIdleWorkers) {
+                if (mLiveWorkers < mWorkerCount) {
+                    startWorker();
+                } else {
+                    victim = findVictim(job.mPriority);
+                    if (victim != null) {
+                        victim.mPreempted = true;
+                    }
+                }
+            }
+            mLock.notify();
+        }
+        if (victim != null) {
+            // Called without holding mLock, since the callback typically resubmits.
+            victim.mPreemptible.preempt();
+        }
+    }
+
+    /**
+     * Return the least urgent running preemptible job that is less urgent than priority,
+     * or null if there is none.  Assumes mLock is held.
+     */
+    private Job findVictim(int priority) {
+        Job result = null;
+        for (Job j : mRunning) {
+            if (j.mPreemptible != null && !j.mPreempted && j.mPriority > priority
+                    && (result == null || j.compareTo(result) > 0)) {
+                result = j;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Assumes mLock is held.
+     */
+    private void startWorker() {
+        ++mLiveWorkers;
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWorker();
+            }
+        }, "CalculatorEval-" + (mNextWorkerId++));
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private void runWorker() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            Job job;
+            synchronized (mLock) {
+                while (mQueue.isEmpty() && mLiveWorkers <= mWorkerCount) {
+                    ++mIdleWorkers;
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        // Stale interrupt from a cancelled task.  Keep waiting.
+                    }
+                    --mIdleWorkers;
+                }
+                if (mLiveWorkers > mWorkerCount) {
+                    --mLiveWorkers;
+                    return;
+                }
+                job = mQueue.poll();
+                mRunning.add(job);
+            }
+            // AsyncTask.cancel(true) may have interrupted us after the previous task completed.
+            // Make sure that doesn't abort an unrelated computation.
+            Thread.interrupted();
+            try {
+                job.mRunnable.run();
+            } finally {
+                synchronized (mLock) {
+                    mRunning.remove(job);
+                }
+            }
+        }
+    }
+}
@@ -34,13 +34,23 @@ import java.io.ByteArrayInputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.TimeZone;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -93,7 +103,9 @@ import java.util.concurrent.atomic.AtomicReference;
  * either kind of computation.
  *
  * We ensure that only one evaluation of either kind (AsyncEvaluator or AsyncReevaluator) is
- * running at a time.
+ * running at a time for any one expression.  Evaluations of different expressions are run by
+ * the shared {@link EvaluationScheduler}, which favors the main expression over history entries,
+ * and may preempt history evaluations to keep the main result responsive.
  */
 public class Evaluator implements CalculatorExpr.ExprResolver {
 
@@ -156,7 +168,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
          * represent a whole number. Callable from non-UI thread.
          * Returns zero if metrics information is not yet available.
          */
-        public float separatorChars(String s, int len);
+        public float separatorChars(CharSequence s, int len);
         /**
          * Return extra width credit for presence of a decimal point, as fraction of a digit width.
          * May be called by non-UI thread.
@@ -179,7 +191,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             return SHORT_TARGET_LENGTH + 10;
         }
         @Override
-        public float separatorChars(String s, int len) {
+        public float separatorChars(CharSequence s, int len) {
             return 0;
         }
         @Override
@@ -222,6 +234,9 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
     private static final String KEY_PREF_MEMORY_INDEX = "memory_index";
     private static final String KEY_PREF_SAVED_NAME = "saved_name";
 
+    // File in app storage holding persisted approximations of named constants.
+    private static final String CONSTANT_CACHE_FILE = "constants.bin";
+
     // The minimum number of extra digits we always try to compute to improve the chance of
     // producing a correctly-rounded-towards-zero result.  The extra digits can be displayed to
     // avoid generating placeholder digits, but should only be displayed briefly while computing.
@@ -239,6 +254,12 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
     private static final int PRECOMPUTE_DIGITS = 30;
     private static final int PRECOMPUTE_DIVISOR = 5;
 
+    // When the user scrolls, we prefetch digits beyond the point at which the scroll is expected
+    // to end, assuming scrolling continues at the current speed for PREFETCH_SECONDS.  But never
+    // more than MAX_PREFETCH_DIGITS.
+    private static final float PREFETCH_SECONDS = 0.5f;
+    private static final int MAX_PREFETCH_DIGITS = 1000;
+
     // Initial evaluation precision.  Enough to guarantee that we can compute the short
     // representation, and that we rarely have to evaluate nonzero results to MAX_MSD_PREC_OFFSET.
     // It also helps if this is at least EXTRA_DIGITS + display width, so that we don't
@@ -275,7 +296,8 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
     public static final int INVALID_MSD = Integer.MAX_VALUE;
 
     // Used to represent an erroneous result or a required evaluation. Not displayed.
-    private static final String ERRONEOUS_RESULT = "ERR";
+    // Only its identity matters.
+    private static final DigitBuffer ERRONEOUS_RESULT = DigitBuffer.valueOf("");
 
     /**
      * An individual CalculatorExpr, together with its evaluation state.
@@ -312,7 +334,8 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         // non-null, it is computed to exactly mResultStringOffset, which is always > 0.
         // Valid only if mResultString is non-null and (for the main expression) !mChangedValue.
         // ERRONEOUS_RESULT indicates evaluation resulted in an error.
-        public String mResultString;
+        // Stored as a DigitBuffer, since it can get very long, and is incrementally extended.
+        public DigitBuffer mResultString;
         public int mResultStringOffset = 0;
         // Number of digits to which (possibly incomplete) evaluation has been requested.
         // Only accessed by UI thread.
@@ -323,10 +346,68 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         // Long timeout needed for evaluation?
         public boolean mLongTimeout = false;
         public long mTimeStamp;
-    }
-
+        // Key for mResultCache.  Lazily computed for immutable expressions, which may happen on
+        // any thread.  Set by the evaluator for the main expression.
+        public volatile ResultCache.Key mCacheKey;
+        // Value of mAccessClock when last retrieved through ensureExprIsCached().
+        public volatile long mLastAccess;
+        // Does this count against the mExprs limits?  If so, the value and result string it
+        // currently contributes to mFootprint.  Set before the ExprInfo is added to mExprs, and
+        // later only by the UI thread.
+        public boolean mCharged;
+        public UnifiedReal mChargedVal;
+        public DigitBuffer mChargedResultString;
+    }
+
+    // Expressions we have looked at, indexed by expression index.  Expressions other than the
+    // main one, memory and saved expressions, and those being evaluated, are evicted in
+    // least-recently-used order once there are too many expressions, or they and mResultCache
+    // use too much memory, as tracked by mChargedExprs and mFootprint.  They are reread from the
+    // database if needed again, and reevaluated if the result is needed.  Eviction happens only
+    // on the UI thread, in a separate event, so that UI thread code may assume that an entry it
+    // just retrieved remains in mExprs.
     private ConcurrentHashMap<Long, ExprInfo> mExprs = new ConcurrentHashMap<Long, ExprInfo>();
 
+    // Limits on mExprs entries at immutable indices, and the results they and mResultCache hold.
+    private static final int MAX_CACHED_EXPRS = 100;
+    private static final long MAX_CACHED_BYTES = 2000000;
+    // Rough size of an ExprInfo and its expression, excluding its value and result string.
+    private static final int EXPR_INFO_BYTES = 500;
+
+    private final AtomicLong mAccessClock = new AtomicLong();
+    private final AtomicBoolean mTrimPending = new AtomicBoolean();
+    private final Runnable mTrimRunnable = new Runnable() {
+        @Override
+        public void run() {
+            trimExprCache();
+        }
+    };
+
+    // Number of mExprs entries with mCharged set.
+    private final AtomicInteger mChargedExprs = new AtomicInteger();
+    // Approximate memory used by those entries and mResultCache.
+    private final ResultCache.Footprint mFootprint = new ResultCache.Footprint();
+
+    // Results shared between identical expressions.
+    private final ResultCache mResultCache = new ResultCache(mFootprint);
+
+    // ExprInfos with a non-null mEvaluator, and a description of that evaluation.
+    // Updated only via setEvaluator() and clearEvaluator().
+    private final EvaluationRegistry<ExprInfo> mRegistry = new EvaluationRegistry<ExprInfo>();
+
+    /**
+     * Return the mResultCache key for ei, or null if ei is the main expression and has not been
+     * successfully evaluated.  Callable from any thread.
+     */
+    private ResultCache.Key getCacheKey(ExprInfo ei) {
+        ResultCache.Key key = ei.mCacheKey;
+        if (key == null && ei != mMainExpr) {
+            key = ResultCache.keyFor(ei.mExpr, ei.mDegreeMode);
+            ei.mCacheKey = key;
+        }
+        return key;
+    }
+
     // The database holding persistent expressions.
     private ExpressionDB mExprDB;
 
@@ -336,6 +417,22 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
 
     private final Handler mTimeoutHandler;  // Used to schedule evaluation timeouts.
 
+    private final EvaluationScheduler mScheduler;  // Runs all background evaluations.
+
+    // Unrequested evaluations of the main expression are started only after input has been
+    // quiet for this many milliseconds.  This coalesces bursts of keystrokes into a single
+    // evaluation.
+    private static final long INSTANT_EVAL_DELAY = 60;
+
+    // Scheduled, but not yet started, unrequested evaluation of the main expression, or null.
+    private Runnable mPendingInstantEval;
+
+    // Generation number of the most recent main expression evaluation.  Incremented whenever
+    // such an evaluation is started or cancelled.  An AsyncEvaluator for the main expression
+    // whose generation is no longer current has been superseded, and stops as soon as it
+    // notices.  Read by background threads.
+    private final AtomicLong mMainGeneration = new AtomicLong();
+
     private void setMainExpr(ExprInfo expr) {
         mMainExpr = expr;
         mExprs.put(MAIN_INDEX, expr);
@@ -346,8 +443,10 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         setMainExpr(new ExprInfo(new CalculatorExpr(), false));
         mSavedName = "none";
         mTimeoutHandler = new Handler();
+        mScheduler = EvaluationScheduler.getInstance();
 
         mExprDB = new ExpressionDB(context);
+        ConstantCache.setFile(new File(context.getFilesDir(), CONSTANT_CACHE_FILE));
         mSharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
         mMainExpr.mDegreeMode = mSharedPrefs.getBoolean(KEY_PREF_DEGREE_MODE, false);
         long savedIndex = mSharedPrefs.getLong(KEY_PREF_SAVED_INDEX, 0L);
@@ -402,7 +501,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      * Result of initial asynchronous result computation.
      * Represents either an error or a result computed to an initial evaluation precision.
      */
-    private static class InitialResult {
+    static class InitialResult {
         public final int errorResourceId;    // Error string or INVALID_RES_ID.
         public final UnifiedReal val;        // Constructive real value.
         public final String newResultString;       // Null iff it can't be computed.
@@ -427,6 +526,43 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         }
     }
 
+    /**
+     * Compute the initial decimal representation of a newly computed value: find the most
+     * significant digit, choose the display precision, and compute enough digits for it.
+     * Runs in a background thread.  May take a long time for values very close to zero.
+     */
+    static InitialResult initialResultFor(UnifiedReal res, CharMetricsInfo cmi) {
+        int precOffset = INIT_PREC;
+        String initResult = res.toStringTruncated(precOffset);
+        int msd = getMsdIndexOf(initResult);
+        if (msd == INVALID_MSD) {
+            int leadingZeroBits = res.leadingBinaryZeroes();
+            if (leadingZeroBits < QUICK_MAX_RESULT_BITS) {
+                // Enough initial nonzero digits for most displays.
+                precOffset = 30 +
+                        (int)Math.ceil(Math.log(2.0d) / Math.log(10.0d) * leadingZeroBits);
+                initResult = res.toStringTruncated(precOffset);
+                msd = getMsdIndexOf(initResult);
+                if (msd == INVALID_MSD) {
+                    throw new AssertionError("Impossible zero result");
+                }
+            } else {
+                // Just try once more at higher fixed precision.
+                precOffset = MAX_MSD_PREC_OFFSET;
+                initResult = res.toStringTruncated(precOffset);
+                msd = getMsdIndexOf(initResult);
+            }
+        }
+        final int lsdOffset = getLsdOffset(res, initResult, initResult.indexOf('.'));
+        final int initDisplayOffset = getPreferredPrec(initResult, msd, lsdOffset, cmi);
+        final int newPrecOffset = initDisplayOffset + EXTRA_DIGITS;
+        if (newPrecOffset > precOffset) {
+            precOffset = newPrecOffset;
+            initResult = res.toStringTruncated(precOffset);
+        }
+        return new InitialResult(res, initResult, precOffset, initDisplayOffset);
+    }
+
     private void displayCancelledMessage() {
         if (mCallback != null) {
             mCallback.showMessageDialog(0, R.string.cancelled, 0, null);
@@ -453,10 +589,26 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      * Return the maximum number of bits in the result.  Longer results are assumed to time out.
      * @param longTimeout a long timeout is in effect
      */
-    private int getMaxResultBits(boolean longTimeout) {
+    static int getMaxResultBits(boolean longTimeout) {
         return longTimeout ? 700000 : 240000;
     }
 
+    /**
+     * Return the work budget for initial evaluation, in EvaluationContext work units.
+     * Unlike the timeout, this does not depend on device speed or load.  Exceeding it is treated
+     * as a timeout.  The wall-clock timeout still applies to work done inside CR, which we
+     * cannot account for.
+     * @param longTimeout a long timeout is in effect
+     */
+    static long getWorkBudget(boolean longTimeout) {
+        return longTimeout ? 20000000000L : 3000000000L;
+    }
+
+    /**
+     * Work budget for unrequested, speculative evaluations.
+     */
+    private static final long QUICK_WORK_BUDGET = 1000000000L;
+
     /**
      * Timeout for unrequested, speculative evaluations, in milliseconds.
      */
@@ -478,6 +630,31 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      */
     private static final int QUICK_MAX_RESULT_BITS = 150000;
 
+    /**
+     * Return the EvaluationScheduler priority for evaluating the expression at index.
+     * The main expression always takes precedence.  HISTORY_MAIN_INDEX and positive indices
+     * are evaluated for display in the history.  Other negative indices are only evaluated
+     * for memory and clipboard purposes, and are not displayed.
+     */
+    private static int getPriority(long index, boolean required) {
+        if (index == MAIN_INDEX) {
+            return required ? EvaluationScheduler.PRIORITY_REQUIRED
+                    : EvaluationScheduler.PRIORITY_SPECULATIVE;
+        } else if (index == HISTORY_MAIN_INDEX || index > 0) {
+            return EvaluationScheduler.PRIORITY_VISIBLE_HISTORY;
+        } else {
+            return EvaluationScheduler.PRIORITY_PREFETCH;
+        }
+    }
+
+    /**
+     * Only evaluations for expressions other than the main one may be preempted.
+     * Those can be restarted without user-visible effects other than delay.
+     */
+    private static boolean isPreemptible(long index) {
+        return index != MAIN_INDEX;
+    }
+
     private void displayTimeoutMessage(boolean longTimeout) {
         if (mCallback != null) {
             mCallback.showMessageDialog(R.string.dialog_timeout, R.string.timeout,
@@ -495,15 +672,23 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      * completes.  Can result in an error display if something goes wrong.  By default we set a
      * timeout to catch runaway computations.
      */
-    class AsyncEvaluator extends AsyncTask<Void, Void, InitialResult> {
+    class AsyncEvaluator extends AsyncTask<Void, Void, InitialResult>
+            implements EvaluationScheduler.Preemptible {
         private boolean mDm;  // degrees
         public boolean mRequired; // Result was requested by user.
         private boolean mQuiet;  // Suppress cancellation message.
+        private boolean mPreempted;  // Cancelled by scheduler and replaced by an equivalent task.
         private Runnable mTimeoutRunnable = null;
         private EvaluationListener mListener;  // Completion callback.
         private CharMetricsInfo mCharMetricsInfo;  // Where to get result size information.
         private long mIndex;  //  Expression index.
         private ExprInfo mExprInfo;  // Current expression.
+        private final CalculatorExpr mExpr;  // Expression being evaluated. Never modified.
+        private final long mGeneration;  // Value of mMainGeneration when we were started.
+        private final ResultCache.Key mCacheKey;  // Identifies mExpr's value in mResultCache.
+        private final ResultCache.Entry mCached;  // Previously computed value, or null.
+        final EvaluationContext mEvalContext;  // Cancellation token and work budget.
+        private final long mStartTime = EvaluationMetrics.start();
 
         AsyncEvaluator(long index, EvaluationListener listener, CharMetricsInfo cmi, boolean dm,
                 boolean required) {
@@ -517,16 +702,49 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             if (mExprInfo.mEvaluator != null) {
                 throw new AssertionError("Evaluation already in progress!");
             }
+            EvaluationMetrics.count(EvaluationMetrics.COUNT_EVALUATIONS);
+            if (mIndex == MAIN_INDEX) {
+                // The main expression may be edited while we run.  Evaluate a copy-on-write
+                // snapshot, so that we can simply be abandoned if that happens.  Typing then
+                // copies the token list once, rather than each evaluation copying it.
+                mExpr = mExprInfo.mExpr.snapshot();
+                mGeneration = mMainGeneration.incrementAndGet();
+            } else {
+                mExpr = mExprInfo.mExpr;
+                mGeneration = 0;
+            }
+            mCacheKey = mIndex == MAIN_INDEX ? ResultCache.keyFor(mExpr, mDm)
+                    : getCacheKey(mExprInfo);
+            mCached = mResultCache.get(mCacheKey);
+            long budget = mRequired ? getWorkBudget(mExprInfo.mLongTimeout) : QUICK_WORK_BUDGET;
+            if (mIndex != MAIN_INDEX) {
+                // As with the timeout: We evaluated this successfully before, possibly in
+                // long timeout mode, so this should never be exceeded.
+                budget = getWorkBudget(true);
+            }
+            mEvalContext = new EvaluationContext(budget);
+        }
+
+        /**
+         * Has a newer main expression evaluation been started or requested since we started?
+         * Callable from any thread.
+         */
+        private boolean isSuperseded() {
+            return mIndex == MAIN_INDEX && mGeneration != mMainGeneration.get();
         }
 
         private void handleTimeout() {
             // Runs in UI thread.
             boolean running = (getStatus() != AsyncTask.Status.FINISHED);
-            if (running && cancel(true)) {
-                mExprs.get(mIndex).mEvaluator = null;
+            if (running && cancelTask(this)) {
+                EvaluationMetrics.count(EvaluationMetrics.COUNT_TIMEOUT_CLOCK);
+                clearEvaluator(mExprInfo);
+                if (mIndex == MAIN_INDEX) {
+                    mMainGeneration.incrementAndGet();
+                }
                 if (mRequired && mIndex == MAIN_INDEX) {
-                    // Replace mExpr with clone to avoid races if task still runs for a while.
-                    mMainExpr.mExpr = (CalculatorExpr)mMainExpr.mExpr.clone();
+                    // We evaluated a private copy of the expression, so there is no need to
+                    // wait for the task to notice.
                     suppressCancelMessage();
                     displayTimeoutMessage(mExprInfo.mLongTimeout);
                 }
@@ -537,6 +755,20 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             mQuiet = true;
         }
 
+        @Override
+        public void preempt() {
+            // Runs in UI thread.
+            if (mExprInfo.mEvaluator != this || !cancelTask(this)) {
+                return;  // Already finished or cancelled.
+            }
+            mPreempted = true;
+            EvaluationMetrics.count(EvaluationMetrics.COUNT_CANCEL_PREEMPTED);
+            clearEvaluator(mExprInfo);
+            // The expression is immutable, so we can simply restart.  If the value was already
+            // computed, the new task will use it.
+            evaluateResult(mIndex, mListener, mCharMetricsInfo, mRequired);
+        }
+
         @Override
         protected void onPreExecute() {
             long timeout = mRequired ? getTimeout(mExprInfo.mLongTimeout) : QUICK_TIMEOUT;
@@ -557,68 +789,83 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             mTimeoutHandler.postDelayed(mTimeoutRunnable, timeout);
         }
 
+        /**
+         * Maximum number of bits to the left of the binary point we are willing to convert to
+         * decimal.
+         */
+        private int getMaxBits() {
+            return mRequired ? getMaxResultBits(mExprInfo.mLongTimeout) : QUICK_MAX_RESULT_BITS;
+        }
+
         /**
          * Is a computed result too big for decimal conversion?
          */
         private boolean isTooBig(UnifiedReal res) {
-            final int maxBits = mRequired ? getMaxResultBits(mExprInfo.mLongTimeout)
-                    : QUICK_MAX_RESULT_BITS;
-            return res.approxWholeNumberBitsGreaterThan(maxBits);
+            return res.approxWholeNumberBitsGreaterThan(getMaxBits());
         }
 
         @Override
         protected InitialResult doInBackground(Void... nothing) {
+            final EvaluationContext previousContext = mEvalContext.attach();
             try {
                 // mExpr does not change while we are evaluating; thus it's OK to read here.
-                UnifiedReal res = mExprInfo.mVal.get();
+                // The main expression's cache was cleared when we started.
+                UnifiedReal res = mIndex == MAIN_INDEX ? null : mExprInfo.mVal.get();
+                if (res == null && mCached != null) {
+                    // Same expression was evaluated before, possibly at a different index.
+                    res = mIndex == MAIN_INDEX ? mCached.mVal
+                            : putResultIfAbsent(mIndex, mCached.mVal);
+                }
                 if (res == null) {
+                    // Check for hopeless cases before we start.
+                    final CalculatorExpr.CostEstimate cost = mExpr.estimateCost(Evaluator.this);
+                    final long budget = mEvalContext.getBudget();
+                    if (cost.minResultLog2 > getMaxBits() + 4 || cost.factorialWork > budget) {
+                        // Would certainly time out, or be too big to display.
+                        EvaluationMetrics.count(EvaluationMetrics.COUNT_TIMEOUT_ESTIMATE);
+                        return new InitialResult(R.string.timeout);
+                    }
+                    // If exact powers are too expensive, the result may still be displayable,
+                    // e.g. for 1/2^(10^9).  Approximate instead.
+                    final long maxExactPowBits = cost.exactPowWork > budget
+                            ? CalculatorExpr.maxExactPowBits(budget) : Long.MAX_VALUE;
                     try {
-                        res = mExprInfo.mExpr.eval(mDm, Evaluator.this);
-                        if (isCancelled()) {
-                            // TODO: This remains very slightly racey. Fix this.
+                        res = mExpr.eval(mDm, Evaluator.this, maxExactPowBits);
+                        if (isCancelled() || isSuperseded()) {
                             throw new CR.AbortedException();
                         }
-                        res = putResultIfAbsent(mIndex, res);
+                        if (mEvalContext.getWorkDone() < cost.factorialWork) {
+                            // Should be a lower bound.  Otherwise we may refuse expressions
+                            // we could have evaluated.
+                            Log.w("Calculator", "Factorial work estimate " + cost.factorialWork
+                                    + " exceeds work done " + mEvalContext.getWorkDone());
+                        }
+                        if (mIndex != MAIN_INDEX) {
+                            // The expression is immutable, so publishing the value is correct
+                            // even if we were cancelled in the meantime.  This also adds it to
+                            // mResultCache.
+                            res = putResultIfAbsent(mIndex, res);
+                        } else {
+                            // Main expression value is set by onPostExecute, only if current.
+                            res = mResultCache.putValue(mCacheKey, res);
+                        }
                     } catch (StackOverflowError e) {
-                        // Absurdly large integer exponents can cause this. There might be other
-                        // examples as well. Treat it as a timeout.
+                        // Absurdly deeply nested expressions can cause this. Treat it as a
+                        // timeout.
+                        EvaluationMetrics.count(EvaluationMetrics.COUNT_TIMEOUT_TOO_BIG);
                         return new InitialResult(R.string.timeout);
                     }
                 }
+                if (isSuperseded()) {
+                    // Don't waste time on decimal conversion for a stale result.
+                    throw new CR.AbortedException();
+                }
                 if (isTooBig(res)) {
                     // Avoid starting a long uninterruptible decimal conversion.
+                    EvaluationMetrics.count(EvaluationMetrics.COUNT_TIMEOUT_TOO_BIG);
                     return new InitialResult(R.string.timeout);
                 }
-                int precOffset = INIT_PREC;
-                String initResult = res.toStringTruncated(precOffset);
-                int msd = getMsdIndexOf(initResult);
-                if (msd == INVALID_MSD) {
-                    int leadingZeroBits = res.leadingBinaryZeroes();
-                    if (leadingZeroBits < QUICK_MAX_RESULT_BITS) {
-                        // Enough initial nonzero digits for most displays.
-                        precOffset = 30 +
-                                (int)Math.ceil(Math.log(2.0d) / Math.log(10.0d) * leadingZeroBits);
-                        initResult = res.toStringTruncated(precOffset);
-                        msd = getMsdIndexOf(initResult);
-                        if (msd == INVALID_MSD) {
-                            throw new AssertionError("Impossible zero result");
-                        }
-                    } else {
-                        // Just try once more at higher fixed precision.
-                        precOffset = MAX_MSD_PREC_OFFSET;
-                        initResult = res.toStringTruncated(precOffset);
-                        msd = getMsdIndexOf(initResult);
-                    }
-                }
-                final int lsdOffset = getLsdOffset(res, initResult, initResult.indexOf('.'));
-                final int initDisplayOffset = getPreferredPrec(initResult, msd, lsdOffset,
-                        mCharMetricsInfo);
-                final int newPrecOffset = initDisplayOffset + EXTRA_DIGITS;
-                if (newPrecOffset > precOffset) {
-                    precOffset = newPrecOffset;
-                    initResult = res.toStringTruncated(precOffset);
-                }
-                return new InitialResult(res, initResult, precOffset, initDisplayOffset);
+                return initialResultFor(res, mCharMetricsInfo);
             } catch (CalculatorExpr.SyntaxException e) {
                 return new InitialResult(R.string.error_syntax);
             } catch (UnifiedReal.ZeroDivisionException e) {
@@ -628,14 +875,19 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             } catch(CR.PrecisionOverflowException e) {
                 // Extremely unlikely unless we're actually dividing by zero or the like.
                 return new InitialResult(R.string.error_overflow);
+            } catch(EvaluationContext.BudgetExceededException e) {
+                EvaluationMetrics.count(EvaluationMetrics.COUNT_TIMEOUT_BUDGET);
+                return new InitialResult(R.string.timeout);
             } catch(CR.AbortedException e) {
                 return new InitialResult(R.string.error_aborted);
+            } finally {
+                mEvalContext.detach(previousContext);
             }
         }
 
         @Override
         protected void onPostExecute(InitialResult result) {
-            mExprInfo.mEvaluator = null;
+            clearEvaluator(mExprInfo);
             mTimeoutHandler.removeCallbacks(mTimeoutRunnable);
             if (result.isError()) {
                 if (result.errorResourceId == R.string.timeout) {
@@ -648,15 +900,35 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
                     if (mRequired) {
                         mExprInfo.mResultString = ERRONEOUS_RESULT;
                     }
+                    EvaluationMetrics.count(EvaluationMetrics.COUNT_ERRORS);
                     mListener.onError(mIndex, result.errorResourceId);
                 }
                 return;
             }
-            // mExprInfo.mVal was already set asynchronously by child thread.
-            mExprInfo.mResultString = result.newResultString;
-            mExprInfo.mResultStringOffset = result.newResultStringOffset;
-            final int dotIndex = mExprInfo.mResultString.indexOf('.');
-            String truncatedWholePart = mExprInfo.mResultString.substring(0, dotIndex);
+            if (mIndex == MAIN_INDEX) {
+                // We are still current, since superseding us would have cancelled us.
+                mExprInfo.mVal.set(result.val);
+            }  // Otherwise mExprInfo.mVal was already set asynchronously by child thread.
+            final ResultCache.Entry cached = mResultCache.get(mCacheKey);
+            if (cached != null && cached.mResultString != null
+                    && cached.mResultStringOffset > result.newResultStringOffset) {
+                // Reuse digits previously computed for an identical expression.  Nothing has
+                // been displayed yet, so we don't need to worry about consistency with
+                // result.newResultString.
+                mExprInfo.mResultString = cached.mResultString;
+                mExprInfo.mResultStringOffset = cached.mResultStringOffset;
+            } else {
+                mExprInfo.mResultString = DigitBuffer.valueOf(result.newResultString);
+                mExprInfo.mResultStringOffset = result.newResultStringOffset;
+                mResultCache.putResultString(mCacheKey, result.val, mExprInfo.mResultString,
+                        mExprInfo.mResultStringOffset);
+            }
+            mExprInfo.mCacheKey = mCacheKey;
+            // The new value and result string count against the mExprs size limit.
+            recharge(mExprInfo);
+            final int dotIndex = mExprInfo.mResultString.getDotIndex();
+            String truncatedWholePart =
+                    mExprInfo.mResultString.subSequence(0, dotIndex).toString();
             // Recheck display precision; it may change, since display dimensions may have been
             // unknow the first time.  In that case the initial evaluation precision should have
             // been conservative.
@@ -675,12 +947,17 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             }
             mListener.onEvaluate(mIndex, initPrecOffset, mExprInfo.mMsdIndex, leastDigOffset,
                     truncatedWholePart);
+            EvaluationMetrics.stop(EvaluationMetrics.TIMER_INITIAL_EVALUATION, mStartTime);
         }
 
         @Override
         protected void onCancelled(InitialResult result) {
             // Invoker resets mEvaluator.
             mTimeoutHandler.removeCallbacks(mTimeoutRunnable);
+            if (mPreempted) {
+                // A replacement task will notify the listener.
+                return;
+            }
             if (!mQuiet) {
                 displayCancelledMessage();
             } // Otherwise, if mRequired, timeout processing displayed message.
@@ -704,22 +981,51 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
     @VisibleForTesting
     public static String unflipZeroes(String oldDigs, int oldPrecOffset, String newDigs,
             int newPrecOffset) {
+        if (!isNineToZeroFlip(oldDigs, oldPrecOffset, newDigs, newPrecOffset)) {
+            return newDigs;
+        }
+        return oldDigs + StringUtils.repeat('9', newPrecOffset - oldPrecOffset);
+    }
+
+    /**
+     * Equivalent to the String version, but extends oldDigs in place when possible.
+     * oldDigs may be null, in which case we just convert newDigs.
+     */
+    public static DigitBuffer unflipZeroes(DigitBuffer oldDigs, int oldPrecOffset,
+            String newDigs, int newPrecOffset) {
+        if (oldDigs == null) {
+            return DigitBuffer.valueOf(newDigs);
+        }
+        if (!isNineToZeroFlip(oldDigs, oldPrecOffset, newDigs, newPrecOffset)) {
+            return oldDigs.extendTo(newDigs);
+        }
+        return oldDigs.appendRepeated('9', newPrecOffset - oldPrecOffset);
+    }
+
+    /**
+     * Does newDigs differ from oldDigs only in that a final 9 in oldDigs became a 0 followed by
+     * zeroes in newDigs?  See unflipZeroes().
+     */
+    private static boolean isNineToZeroFlip(CharSequence oldDigs, int oldPrecOffset,
+            CharSequence newDigs, int newPrecOffset) {
         final int oldLen = oldDigs.length();
         if (oldDigs.charAt(oldLen - 1) != '9') {
-            return newDigs;
+            return false;
         }
         final int newLen = newDigs.length();
         final int precDiff = newPrecOffset - oldPrecOffset;
         final int oldLastInNew = newLen - 1 - precDiff;
         if (newDigs.charAt(oldLastInNew) != '0') {
-            return newDigs;
+            return false;
         }
         // Earlier digits could not have changed without a 0 to 9 or 9 to 0 flip at end.
         // The former is OK.
-        if (!newDigs.substring(newLen - precDiff).equals(StringUtils.repeat('0', precDiff))) {
-            throw new AssertionError("New approximation invalidates old one!");
+        for (int i = newLen - precDiff; i < newLen; ++i) {
+            if (newDigs.charAt(i) != '0') {
+                throw new AssertionError("New approximation invalidates old one!");
+            }
         }
-        return oldDigs + StringUtils.repeat('9', precDiff);
+        return true;
     }
 
     /**
@@ -734,30 +1040,63 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         }
     }
 
+    // Reevaluations that extend the result by more than this many digits deliver intermediate
+    // results, roughly doubling the number of digits each time.  Since the cost of computing
+    // digits grows faster than linearly, this adds only a modest amount of total work, and lets
+    // us display digits as soon as they are available when the user scrolls far to the right.
+    private static final int MIN_STREAMED_DIGITS = 200;
+
     /**
      * Compute new mResultString contents to prec digits to the right of the decimal point.
      * Ensure that onReevaluate() is called after doing so.  If the evaluation fails for reasons
      * other than a timeout, ensure that onError() is called.
+     * If the requested precision is much larger than what we have, we also update mResultString
+     * and call onReevaluate() for intermediate precisions.
      * This assumes that initial evaluation of the expression has been successfully
      * completed.
+     * Takes two arguments: the requested precision offset and the current one.
      */
-    private class AsyncReevaluator extends AsyncTask<Integer, Void, ReevalResult> {
+    private class AsyncReevaluator extends AsyncTask<Integer, ReevalResult, ReevalResult>
+            implements EvaluationScheduler.Preemptible {
         private long mIndex;  // Index of expression to evaluate.
         private EvaluationListener mListener;
         private ExprInfo mExprInfo;
+        // Reevaluation is not time limited.  But we use the cancellation token.
+        final EvaluationContext mEvalContext = new EvaluationContext(EvaluationContext.UNLIMITED);
+        private final long mStartTime = EvaluationMetrics.start();
 
         AsyncReevaluator(long index, EvaluationListener listener) {
             mIndex = index;
             mListener = listener;
             mExprInfo = mExprs.get(mIndex);
+            EvaluationMetrics.count(EvaluationMetrics.COUNT_REEVALUATIONS);
+        }
+
+        @Override
+        public void preempt() {
+            // Runs in UI thread.
+            if (mExprInfo.mEvaluator != this || !cancelTask(this)) {
+                return;  // Already finished or cancelled.
+            }
+            // Requeue the same request behind the more urgent work.
+            EvaluationMetrics.count(EvaluationMetrics.COUNT_CANCEL_PREEMPTED);
+            clearEvaluator(mExprInfo);
+            startReevaluation(mIndex, mExprInfo, mListener);
         }
 
         @Override
         protected ReevalResult doInBackground(Integer... prec) {
+            final EvaluationContext previousContext = mEvalContext.attach();
             try {
+                final UnifiedReal val = mExprInfo.mVal.get();
                 final int precOffset = prec[0].intValue();
-                return new ReevalResult(mExprInfo.mVal.get().toStringTruncated(precOffset),
-                        precOffset);
+                int nextOffset = nextStreamedOffset(prec[1].intValue());
+                while (nextOffset < precOffset - MIN_STREAMED_DIGITS && !isCancelled()) {
+                    publishProgress(new ReevalResult(val.toStringTruncated(nextOffset),
+                            nextOffset));
+                    nextOffset = nextStreamedOffset(nextOffset);
+                }
+                return new ReevalResult(val.toStringTruncated(precOffset), precOffset);
             } catch(ArithmeticException e) {
                 return null;
             } catch(CR.PrecisionOverflowException e) {
@@ -766,7 +1105,42 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
                 // Should only happen if the task was cancelled, in which case we don't look at
                 // the result.
                 return null;
+            } finally {
+                mEvalContext.detach(previousContext);
+            }
+        }
+
+        private int nextStreamedOffset(int offset) {
+            return Math.max(2 * offset, offset + MIN_STREAMED_DIGITS);
+        }
+
+        /**
+         * Merge a newly computed, more precise result string into mResultString.
+         */
+        private void updateResultString(ReevalResult result) {
+            if (result.newResultStringOffset < mExprInfo.mResultStringOffset) {
+                throw new AssertionError("Unexpected onPostExecute timing");
+            }
+            mExprInfo.mResultString = unflipZeroes(mExprInfo.mResultString,
+                    mExprInfo.mResultStringOffset, result.newResultString,
+                    result.newResultStringOffset);
+            mExprInfo.mResultStringOffset = result.newResultStringOffset;
+            final ResultCache.Key key = getCacheKey(mExprInfo);
+            if (key != null) {
+                mResultCache.putResultString(key, mExprInfo.mVal.get(), mExprInfo.mResultString,
+                        mExprInfo.mResultStringOffset);
+            }
+            // Long result strings count against the mExprs size limit.
+            recharge(mExprInfo);
+        }
+
+        @Override
+        protected void onProgressUpdate(ReevalResult... results) {
+            if (isCancelled() || mExprInfo.mEvaluator != this) {
+                return;
             }
+            updateResultString(results[0]);
+            mListener.onReevaluate(mIndex);
         }
 
         @Override
@@ -776,43 +1150,93 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
                 // domain error while reevaluating or in case of a precision overflow.  We don't
                 // know of a way to get the latter with a plausible amount of user input.
                 mExprInfo.mResultString = ERRONEOUS_RESULT;
+                EvaluationMetrics.count(EvaluationMetrics.COUNT_ERRORS);
                 mListener.onError(mIndex, R.string.error_nan);
             } else {
-                if (result.newResultStringOffset < mExprInfo.mResultStringOffset) {
-                    throw new AssertionError("Unexpected onPostExecute timing");
-                }
-                mExprInfo.mResultString = unflipZeroes(mExprInfo.mResultString,
-                        mExprInfo.mResultStringOffset, result.newResultString,
-                        result.newResultStringOffset);
-                mExprInfo.mResultStringOffset = result.newResultStringOffset;
+                updateResultString(result);
                 mListener.onReevaluate(mIndex);
+                EvaluationMetrics.stop(EvaluationMetrics.TIMER_REEVALUATION, mStartTime);
             }
-            mExprInfo.mEvaluator = null;
+            clearEvaluator(mExprInfo);
         }
         // On cancellation we do nothing; invoker should have left no trace of us.
     }
 
+    /**
+     * Start computing the digits needed to display the result at index with the last digit at
+     * targetPrecOffset, typically the position at which a fling is expected to end.  We don't
+     * wait for the display to get there and discover that the digits are missing.
+     * Only affects results that were already successfully evaluated.
+     * @param velocity scroll velocity in digits per second, positive if towards less
+     *        significant digits.  Determines how far beyond the target we prefetch.
+     * @param listener notified of reevaluation, as for getString().
+     */
+    public void prefetchDigits(long index, int targetPrecOffset, float velocity,
+            EvaluationListener listener) {
+        final ExprInfo ei = mExprs.get(index);
+        if (ei == null || ei.mResultString == null || ei.mResultString == ERRONEOUS_RESULT) {
+            return;
+        }
+        final int lookahead = velocity <= 0 ? 0
+                : (int) Math.min(velocity * PREFETCH_SECONDS, (float) MAX_PREFETCH_DIGITS);
+        ensureCachePrec(index, targetPrecOffset + EXTRA_DIGITS + lookahead, listener);
+    }
+
     /**
      * If necessary, start an evaluation of the expression at the given index to precOffset.
      * If we start an evaluation the listener is notified on completion.
      * Only called if prior evaluation succeeded.
      */
     private void ensureCachePrec(long index, int precOffset, EvaluationListener listener) {
-        ExprInfo ei = mExprs.get(index);
+        final long start = EvaluationMetrics.start();
+        try {
+            ensureCachePrecUntimed(index, precOffset, listener);
+        } finally {
+            EvaluationMetrics.stop(EvaluationMetrics.TIMER_ENSURE_CACHE_PREC, start);
+        }
+    }
+
+    private void ensureCachePrecUntimed(long index, int precOffset,
+            EvaluationListener listener) {
+        ExprInfo ei = ensureExprIsCached(index);
         if (ei.mResultString != null && ei.mResultStringOffset >= precOffset
                 || ei.mResultStringOffsetReq >= precOffset) return;
+        if (ei.mVal.get() == null) {
+            // Evicted from mExprs and reread. Start over.
+            if (ei.mEvaluator == null) {
+                evaluateResult(index, listener, mDummyCharMetricsInfo, false);
+            }
+            return;
+        }
         if (ei.mEvaluator != null) {
             // Ensure we only have one evaluation running at a time.
-            ei.mEvaluator.cancel(true);
-            ei.mEvaluator = null;
+            EvaluationMetrics.count(EvaluationMetrics.COUNT_CANCEL_RESTARTED);
+            cancelTask(ei.mEvaluator);
+            clearEvaluator(ei);
         }
-        AsyncReevaluator reEval = new AsyncReevaluator(index, listener);
-        ei.mEvaluator = reEval;
         ei.mResultStringOffsetReq = precOffset + PRECOMPUTE_DIGITS;
         if (ei.mResultString != null) {
             ei.mResultStringOffsetReq += ei.mResultStringOffsetReq / PRECOMPUTE_DIVISOR;
         }
-        reEval.execute(ei.mResultStringOffsetReq);
+        startReevaluation(index, ei, listener);
+    }
+
+    /**
+     * Start an AsyncReevaluator computing the result to ei.mResultStringOffsetReq digits.
+     * Assumes no evaluator is currently running for ei.
+     */
+    private void startReevaluation(long index, ExprInfo ei, EvaluationListener listener) {
+        AsyncReevaluator reEval = new AsyncReevaluator(index, listener);
+        setEvaluator(ei, reEval, new EvaluationRegistry.Record(index,
+                EvaluationRegistry.KIND_REEVALUATION, ei.mResultStringOffsetReq,
+                getPriority(index, true)));
+        // A reevaluation is needed only if the result is being displayed.  Thus the main
+        // expression is always treated as required.
+        // Intermediate results are only useful if we already have a result string to extend.
+        final int currentOffset = ei.mResultString == null ? ei.mResultStringOffsetReq
+                : ei.mResultStringOffset;
+        reEval.executeOnExecutor(mScheduler.executorFor(getPriority(index, true),
+                isPreemptible(index) ? reEval : null), ei.mResultStringOffsetReq, currentOffset);
     }
 
     /**
@@ -824,7 +1248,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      *         Integer.MIN_VALUE if we cannot determine.  Integer.MAX_VALUE if there is no lsd,
      *         or we cannot determine it.
      */
-    static int getLsdOffset(UnifiedReal val, String cache, int decIndex) {
+    static int getLsdOffset(UnifiedReal val, CharSequence cache, int decIndex) {
         if (val.definitelyZero()) return Integer.MIN_VALUE;
         int result = val.digitsRequired();
         if (result == 0) {
@@ -848,10 +1272,20 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      * @param lastDigitOffset Position of least significant digit (1 = tenths digit)
      *                  or Integer.MAX_VALUE.
      */
-    private static int getPreferredPrec(String cache, int msd, int lastDigitOffset,
+    private static int getPreferredPrec(CharSequence cache, int msd, int lastDigitOffset,
+            CharMetricsInfo cm) {
+        final long start = EvaluationMetrics.start();
+        try {
+            return getPreferredPrecUntimed(cache, msd, lastDigitOffset, cm);
+        } finally {
+            EvaluationMetrics.stop(EvaluationMetrics.TIMER_PREFERRED_PREC, start);
+        }
+    }
+
+    private static int getPreferredPrecUntimed(CharSequence cache, int msd, int lastDigitOffset,
             CharMetricsInfo cm) {
         final int lineLength = cm.getMaxChars();
-        final int wholeSize = cache.indexOf('.');
+        final int wholeSize = DigitBuffer.dotIndexOf(cache);
         final float rawSepChars = cm.separatorChars(cache, wholeSize);
         final float rawSepCharsNoDecimal = rawSepChars - cm.getNoEllipsisCredit();
         final float rawSepCharsWithDecimal = rawSepCharsNoDecimal - cm.getDecimalCredit();
@@ -916,13 +1350,13 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      * @param lsdOffset Position of least significant digit in finite representation,
      *            relative to decimal point, or MAX_VALUE.
      */
-    private static String getShortString(String cache, int msdIndex, int lsdOffset) {
+    private static String getShortString(CharSequence cache, int msdIndex, int lsdOffset) {
         // This somewhat mirrors the display formatting code, but
         // - The constants are different, since we don't want to use the whole display.
         // - This is an easier problem, since we don't support scrolling and the length
         //   is a bit flexible.
         // TODO: Think about refactoring this to remove partial redundancy with CalculatorResult.
-        final int dotIndex = cache.indexOf('.');
+        final int dotIndex = DigitBuffer.dotIndexOf(cache);
         final int negative = cache.charAt(0) == '-' ? 1 : 0;
         final String negativeSign = negative == 1 ? "-" : "";
 
@@ -968,23 +1402,23 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             if (totalDigits <= SHORT_TARGET_LENGTH && dotIndex > msdIndex && lsdOffset >= -1) {
                 // Fits, no exponent needed.
                 final String wholeWithCommas = StringUtils.addCommas(cache, msdIndex, dotIndex);
-                return negativeSign + wholeWithCommas + cache.substring(dotIndex, lsdIndex + 1);
+                return negativeSign + wholeWithCommas + cache.subSequence(dotIndex, lsdIndex + 1);
             }
             if (totalDigits <= SHORT_TARGET_LENGTH - 3) {
                 return negativeSign + cache.charAt(msdIndex) + "."
-                        + cache.substring(msdIndex + 1, lsdIndex + 1) + "E" + exponent;
+                        + cache.subSequence(msdIndex + 1, lsdIndex + 1) + "E" + exponent;
             }
         }
         // We need to abbreviate.
         if (dotIndex > msdIndex && dotIndex < msdIndex + SHORT_TARGET_LENGTH - negative - 1) {
             final String wholeWithCommas = StringUtils.addCommas(cache, msdIndex, dotIndex);
             return negativeSign + wholeWithCommas
-                    + cache.substring(dotIndex, msdIndex + SHORT_TARGET_LENGTH - negative - 1)
+                    + cache.subSequence(dotIndex, msdIndex + SHORT_TARGET_LENGTH - negative - 1)
                     + KeyMaps.ELLIPSIS;
         }
         // Need abbreviation + exponent
         return negativeSign + cache.charAt(msdIndex) + "."
-                + cache.substring(msdIndex + 1, msdIndex + SHORT_TARGET_LENGTH - negative - 4)
+                + cache.subSequence(msdIndex + 1, msdIndex + SHORT_TARGET_LENGTH - negative - 4)
                 + KeyMaps.ELLIPSIS + "E" + exponent;
     }
 
@@ -993,7 +1427,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      * Return INVALID_MSD if there are not enough digits to prove the numeric value is
      * different from zero.  As usual, we assume an error of strictly less than 1 ulp.
      */
-    public static int getMsdIndexOf(String s) {
+    public static int getMsdIndexOf(CharSequence s) {
         final int len = s.length();
         int nonzeroIndex = -1;
         for (int i = 0; i < len; ++i) {
@@ -1017,7 +1451,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      * Result is almost consistent through reevaluations: It may increase by one, once.
      */
     private int getMsdIndex(long index) {
-        ExprInfo ei = mExprs.get(index);
+        ExprInfo ei = ensureExprIsCached(index);
         if (ei.mMsdIndex != INVALID_MSD) {
             // 0.100000... can change to 0.0999999...  We may have to correct once by one digit.
             if (ei.mResultString.charAt(ei.mMsdIndex) == '0') {
@@ -1061,17 +1495,21 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      * @param truncated Zeroth element is set if leading nonzero digits were dropped
      * @param negative Zeroth element is set of the result is negative.
      * @param listener EvaluationListener to notify when reevaluation is complete.
+     * @param result Buffer to which the result is appended.  Supplied by the caller, so that
+     *               redisplaying while scrolling does not allocate.
      */
-    public String getString(long index, int[] precOffset, int maxPrecOffset, int maxDigs,
-            boolean[] truncated, boolean[] negative, EvaluationListener listener) {
-        ExprInfo ei = mExprs.get(index);
+    public void getString(long index, int[] precOffset, int maxPrecOffset, int maxDigs,
+            boolean[] truncated, boolean[] negative, EvaluationListener listener,
+            StringBuilder result) {
+        ExprInfo ei = ensureExprIsCached(index);
         int currentPrecOffset = precOffset[0];
         // Make sure we eventually get a complete answer
         if (ei.mResultString == null) {
             ensureCachePrec(index, currentPrecOffset + EXTRA_DIGITS, listener);
             // Nothing else to do now; seems to happen on rare occasion with weird user input
             // timing; Will repair itself in a jiffy.
-            return " ";
+            result.append(' ');
+            return;
         } else {
             ensureCachePrec(index, currentPrecOffset + EXTRA_DIGITS + ei.mResultString.length()
                     / EXTRA_DIVISOR, listener);
@@ -1099,19 +1537,19 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         }
         int endIndex = len - extraDigs;
         if (endIndex < 1) {
-            return " ";
+            result.append(' ');
+            return;
         }
         int startIndex = Math.max(endIndex + deficit - maxDigs, 0);
         truncated[0] = (startIndex > getMsdIndex(index));
-        String result = ei.mResultString.substring(startIndex, endIndex);
-        if (deficit > 0) {
-            result += StringUtils.repeat(' ', deficit);
+        result.append(ei.mResultString, startIndex, endIndex);
+        for (int i = 0; i < deficit; ++i) {
+            result.append(' ');
             // Blank character is replaced during translation.
             // Since we always compute past the decimal point, this never fills in the spot
             // where the decimal point should go, and we can otherwise treat placeholders
             // as though they were digits.
         }
-        return result;
     }
 
     /**
@@ -1119,6 +1557,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      */
     private void clearMainCache() {
         mMainExpr.mVal.set(null);
+        mMainExpr.mCacheKey = null;
         mMainExpr.mResultString = null;
         mMainExpr.mResultStringOffset = mMainExpr.mResultStringOffsetReq = 0;
         mMainExpr.mMsdIndex = INVALID_MSD;
@@ -1139,6 +1578,10 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         setMemoryIndex(0);
         mExprDB.eraseAll();
         mExprs.clear();
+        // Keys refer to embedded expressions by index, and indices may now be reused.
+        mResultCache.clear();
+        mChargedExprs.set(0);
+        mFootprint.clear();
         setMainExpr(new ExprInfo(new CalculatorExpr(), dm));
     }
 
@@ -1156,8 +1599,10 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             clearMainCache();
         }  // Otherwise the expression is immutable.
         AsyncEvaluator eval =  new AsyncEvaluator(index, listener, cmi, ei.mDegreeMode, required);
-        ei.mEvaluator = eval;
-        eval.execute();
+        setEvaluator(ei, eval, new EvaluationRegistry.Record(index,
+                EvaluationRegistry.KIND_INITIAL, INIT_PREC, getPriority(index, required)));
+        eval.executeOnExecutor(mScheduler.executorFor(getPriority(index, required),
+                isPreemptible(index) ? eval : null));
         if (index == MAIN_INDEX) {
             mChangedValue = false;
         }
@@ -1168,8 +1613,8 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      */
     void notifyImmediately(long index, ExprInfo ei, EvaluationListener listener,
             CharMetricsInfo cmi) {
-        final int dotIndex = ei.mResultString.indexOf('.');
-        final String truncatedWholePart = ei.mResultString.substring(0, dotIndex);
+        final int dotIndex = ei.mResultString.getDotIndex();
+        final String truncatedWholePart = ei.mResultString.subSequence(0, dotIndex).toString();
         final int leastDigOffset = getLsdOffset(ei.mVal.get(), ei.mResultString, dotIndex);
         final int msdIndex = getMsdIndex(index);
         final int preferredPrecOffset = getPreferredPrec(ei.mResultString, msdIndex,
@@ -1199,7 +1644,37 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             // We only allow a single listener per expression, so this request must be redundant.
             return;
         }
-        evaluateResult(index, listener, cmi, false);
+        if (index == MAIN_INDEX) {
+            scheduleInstantEval(listener, cmi);
+        } else {
+            evaluateResult(index, listener, cmi, false);
+        }
+    }
+
+    /**
+     * Start an unrequested evaluation of the main expression once input has been quiet for
+     * INSTANT_EVAL_DELAY.  Replaces any previously scheduled one.
+     */
+    private void scheduleInstantEval(final EvaluationListener listener,
+            final CharMetricsInfo cmi) {
+        cancelPendingInstantEval();
+        mPendingInstantEval = new Runnable() {
+            @Override
+            public void run() {
+                mPendingInstantEval = null;
+                if (mMainExpr.mEvaluator == null) {
+                    evaluateResult(MAIN_INDEX, listener, cmi, false);
+                }
+            }
+        };
+        mTimeoutHandler.postDelayed(mPendingInstantEval, INSTANT_EVAL_DELAY);
+    }
+
+    private void cancelPendingInstantEval() {
+        if (mPendingInstantEval != null) {
+            mTimeoutHandler.removeCallbacks(mPendingInstantEval);
+            mPendingInstantEval = null;
+        }
     }
 
     /**
@@ -1224,12 +1699,12 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
                 // Duplicate request; ignore.
             } else {
                 // (Re)start evaluator in requested mode, i.e. with longer timeout.
-                cancel(ei, true);
+                cancel(ei, true, EvaluationMetrics.COUNT_CANCEL_RESTARTED);
                 evaluateResult(index, listener, cmi, true);
             }
         } else if (ei.mResultString == ERRONEOUS_RESULT) {
             // Just re-evaluate to generate a new notification.
-            cancel(ei, true);
+            cancel(ei, true, EvaluationMetrics.COUNT_CANCEL_RESTARTED);
             evaluateResult(index, listener, cmi, true);
         } else {
             notifyImmediately(index, ei, listener, cmi);
@@ -1252,35 +1727,86 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         return ei != null && ei.mEvaluator != null;
     }
 
+    /**
+     * Return descriptions of the evaluations currently in progress, oldest first.
+     * Callable from any thread.
+     */
+    public List<EvaluationRegistry.Record> getActiveEvaluations() {
+        return mRegistry.getRecords();
+    }
+
+    /**
+     * Print the evaluations currently in progress and EvaluationMetrics, for debugging.
+     */
+    public void dump(String prefix, PrintWriter pw) {
+        pw.println(prefix + "Evaluator: " + mExprs.size() + " cached expression(s)");
+        mRegistry.dump(prefix + "  ", pw);
+        EvaluationMetrics.dump(prefix + "  ", pw);
+    }
+
+    /**
+     * Make task the evaluator for ei, and register it as described by record.
+     * Runs in UI thread.
+     */
+    private void setEvaluator(ExprInfo ei, AsyncTask task, EvaluationRegistry.Record record) {
+        ei.mEvaluator = task;
+        mRegistry.add(ei, record);
+    }
+
+    /**
+     * Forget about ei's evaluator, which finished or was cancelled.  Runs in UI thread.
+     */
+    private void clearEvaluator(ExprInfo ei) {
+        ei.mEvaluator = null;
+        mRegistry.remove(ei);
+    }
+
+    /**
+     * Cancel an AsyncEvaluator or AsyncReevaluator, and cancel its EvaluationContext, so that
+     * the computation stops promptly, including any parts running on other threads.
+     * @return false if the task could not be cancelled, typically because it already completed
+     */
+    private static boolean cancelTask(AsyncTask task) {
+        if (task instanceof AsyncEvaluator) {
+            ((AsyncEvaluator) task).mEvalContext.cancel();
+        } else if (task instanceof AsyncReevaluator) {
+            ((AsyncReevaluator) task).mEvalContext.cancel();
+        }
+        return task.cancel(true);
+    }
+
     /**
      * Cancel any current background task associated with the given ExprInfo.
      * @param quiet suppress cancellation message
+     * @param cause EvaluationMetrics counter recording the reason for cancellation
      * @return true if we cancelled an initial evaluation
      */
-    private boolean cancel(ExprInfo expr, boolean quiet) {
+    private boolean cancel(ExprInfo expr, boolean quiet, int cause) {
+        if (expr == mMainExpr) {
+            cancelPendingInstantEval();
+        }
         if (expr.mEvaluator != null) {
+            EvaluationMetrics.count(cause);
             if (quiet && (expr.mEvaluator instanceof AsyncEvaluator)) {
                 ((AsyncEvaluator)(expr.mEvaluator)).suppressCancelMessage();
             }
             // Reevaluation in progress.
             if (expr.mVal.get() != null) {
-                expr.mEvaluator.cancel(true);
+                cancelTask(expr.mEvaluator);
                 expr.mResultStringOffsetReq = expr.mResultStringOffset;
                 // Backgound computation touches only constructive reals.
                 // OK not to wait.
-                expr.mEvaluator = null;
+                clearEvaluator(expr);
             } else {
-                expr.mEvaluator.cancel(true);
+                cancelTask(expr.mEvaluator);
                 if (expr == mMainExpr) {
-                    // The expression is modifiable, and the AsyncTask is reading it.
-                    // There seems to be no good way to wait for cancellation.
-                    // Give ourselves a new copy to work on instead.
-                    mMainExpr.mExpr = (CalculatorExpr)mMainExpr.mExpr.clone();
-                    // Approximation of constructive reals should be thread-safe,
-                    // so we can let that continue until it notices the cancellation.
+                    // The AsyncEvaluator works on its own copy of the expression, and will
+                    // never publish its result.  Let it continue until it notices that it has
+                    // been superseded.
+                    mMainGeneration.incrementAndGet();
                     mChangedValue = true;    // Didn't do the expected evaluation.
                 }
-                expr.mEvaluator = null;
+                clearEvaluator(expr);
                 return true;
             }
         }
@@ -1298,28 +1824,43 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         if (ei == null) {
             return false;
         } else {
-            return cancel(ei, quiet);
+            return cancel(ei, quiet, EvaluationMetrics.COUNT_CANCEL_REQUESTED);
         }
     }
 
     public void cancelAll(boolean quiet) {
-        // TODO: May want to keep active evaluators in a HashSet to avoid traversing
-        // all expressions we've looked at.
-        for (ExprInfo expr: mExprs.values()) {
-            cancel(expr, quiet);
+        cancelPendingInstantEval();
+        for (ExprInfo expr: mRegistry.getKeys()) {
+            cancel(expr, quiet, EvaluationMetrics.COUNT_CANCEL_ALL);
         }
     }
 
+    /**
+     * Save newly computed digits of pi, e, and other named constants, so that the next process
+     * doesn't have to recompute them.  The write happens in the background.
+     */
+    public void persistConstants() {
+        if (!ConstantCache.needsSave()) {
+            return;
+        }
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!ConstantCache.save()) {
+                    Log.v("Calculator", "Failed to save constant cache");
+                }
+            }
+        });
+    }
+
     /**
      * Quietly cancel all evaluations associated with expressions other than the main one.
      * These are currently the evaluations associated with the history fragment.
      */
     public void cancelNonMain() {
-        // TODO: May want to keep active evaluators in a HashSet to avoid traversing
-        // all expressions we've looked at.
-        for (ExprInfo expr: mExprs.values()) {
+        for (ExprInfo expr: mRegistry.getKeys()) {
             if (expr != mMainExpr) {
-                cancel(expr, true);
+                cancel(expr, true, EvaluationMetrics.COUNT_CANCEL_NON_MAIN);
             }
         }
     }
@@ -1406,7 +1947,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      * mTimeStamp is not copied.
      */
     private ExprInfo copy(long index, boolean copyValue) {
-        ExprInfo fromEi = mExprs.get(index);
+        ExprInfo fromEi = ensureExprIsCached(index);
         ExprInfo ei = new ExprInfo((CalculatorExpr)fromEi.mExpr.clone(), fromEi.mDegreeMode);
         while (ei.mExpr.hasTrailingBinary()) {
             ei.mExpr.delete();
@@ -1455,8 +1996,8 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         result.add(op);
         result.append(collapsed2);
         ExprInfo resultEi = new ExprInfo(result, false /* dont care about degrees/radians */);
-        resultEi.mLongTimeout = mExprs.get(index1).mLongTimeout
-                || mExprs.get(index2).mLongTimeout;
+        resultEi.mLongTimeout = ensureExprIsCached(index1).mLongTimeout
+                || ensureExprIsCached(index2).mLongTimeout;
         return resultEi;
     }
 
@@ -1479,7 +2020,9 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         if (resultIndex == MAIN_INDEX) {
             throw new AssertionError("Should not store main expression");
         }
+        charge(ei);
         mExprs.put(resultIndex, ei);
+        checkCacheLimits();
         return resultIndex;
     }
 
@@ -1531,8 +2074,8 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      */
     private CalculatorExpr getCollapsedExpr(long index) {
         long real_index = isMutableIndex(index) ? preserve(index, false) : index;
-        final ExprInfo ei = mExprs.get(real_index);
-        final String rs = ei.mResultString;
+        final ExprInfo ei = ensureExprIsCached(real_index);
+        final DigitBuffer rs = ei.mResultString;
         // An error can occur here only under extremely unlikely conditions.
         // Check anyway, and just refuse.
         // rs *should* never be null, but it happens. Check as a workaround to protect against
@@ -1540,7 +2083,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         if (rs == ERRONEOUS_RESULT || rs == null) {
             return null;
         }
-        final int dotIndex = rs.indexOf('.');
+        final int dotIndex = rs.getDotIndex();
         final int leastDigOffset = getLsdOffset(ei.mVal.get(), rs, dotIndex);
         return ei.mExpr.abbreviate(real_index,
                 getShortString(rs, getMsdIndexOf(rs), leastDigOffset));
@@ -1555,7 +2098,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      * diverge, though it may generate errors of various kinds.  E.g.  sqrt(-10^-1000) .
      */
     public void collapse(long index) {
-        final boolean longTimeout = mExprs.get(index).mLongTimeout;
+        final boolean longTimeout = ensureExprIsCached(index).mLongTimeout;
         final CalculatorExpr abbrvExpr = getCollapsedExpr(index);
         clearMain();
         mMainExpr.mExpr.append(abbrvExpr);
@@ -1667,8 +2210,8 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      * mExpr is left alone.  Return false if result is unavailable.
      */
     private boolean copyToSaved(long index) {
-        if (mExprs.get(index).mResultString == null
-                || mExprs.get(index).mResultString == ERRONEOUS_RESULT) {
+        final DigitBuffer rs = ensureExprIsCached(index).mResultString;
+        if (rs == null || rs == ERRONEOUS_RESULT) {
             return false;
         }
         setSavedIndex(isMutableIndex(index) ? preserve(index, false) : index);
@@ -1757,7 +2300,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      * Append the expression at index as a pre-evaluated expression to the main expression.
      */
     public void appendExpr(long index) {
-        ExprInfo ei = mExprs.get(index);
+        ExprInfo ei = ensureExprIsCached(index);
         mChangedValue = true;
         mMainExpr.mLongTimeout |= ei.mLongTimeout;
         CalculatorExpr collapsed = getCollapsedExpr(index);
@@ -1788,6 +2331,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
     private ExprInfo ensureExprIsCached(long index) {
         ExprInfo ei = mExprs.get(index);
         if (ei != null) {
+            ei.mLastAccess = mAccessClock.incrementAndGet();
             return ei;
         }
         if (index == MAIN_INDEX) {
@@ -1803,8 +2347,128 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         } catch(IOException e) {
             throw new AssertionError("IO Exception without real IO:" + e);
         }
+        ei.mLastAccess = mAccessClock.incrementAndGet();
+        charge(ei);
         ExprInfo newEi = mExprs.putIfAbsent(index, ei);
-        return newEi == null ? ei : newEi;
+        if (newEi != null) {
+            discharge(ei);
+            return newEi;
+        }
+        checkCacheLimits();
+        return ei;
+    }
+
+    /**
+     * Arrange for trimExprCache() to run soon on the UI thread.  Callable from any thread.
+     */
+    private void scheduleTrim() {
+        if (mTrimPending.compareAndSet(false, true)) {
+            mTimeoutHandler.post(mTrimRunnable);
+        }
+    }
+
+    private boolean isEvictable(long index, ExprInfo ei) {
+        return !isMutableIndex(index) && index != mMemoryIndex && index != mSavedIndex
+                && ei.mEvaluator == null;
+    }
+
+    /**
+     * Count ei against the mExprs limits.  Called just before ei is added to mExprs at an
+     * immutable index, from any thread.  If ei doesn't end up in mExprs, it must be discharged.
+     */
+    private void charge(ExprInfo ei) {
+        ei.mCharged = true;
+        ei.mChargedVal = ei.mVal.get();
+        ei.mChargedResultString = ei.mResultString;
+        mChargedExprs.incrementAndGet();
+        mFootprint.add(EXPR_INFO_BYTES, ei.mChargedVal, ei.mResultString, ei.mResultStringOffset);
+    }
+
+    /**
+     * Stop counting ei, which was charged, against the mExprs limits.
+     */
+    private void discharge(ExprInfo ei) {
+        mChargedExprs.decrementAndGet();
+        mFootprint.remove(EXPR_INFO_BYTES, ei.mChargedVal, ei.mChargedResultString);
+    }
+
+    /**
+     * Update mFootprint after ei's value or result string changed.  Runs on the UI thread.
+     */
+    private void recharge(ExprInfo ei) {
+        if (!ei.mCharged) {
+            return;
+        }
+        final UnifiedReal val = ei.mVal.get();
+        // Add first, so that objects we still refer to are not forgotten in between.
+        mFootprint.add(0, val, ei.mResultString, ei.mResultStringOffset);
+        mFootprint.remove(0, ei.mChargedVal, ei.mChargedResultString);
+        ei.mChargedVal = val;
+        ei.mChargedResultString = ei.mResultString;
+        checkCacheLimits();
+    }
+
+    private boolean withinCacheLimits() {
+        return mChargedExprs.get() <= MAX_CACHED_EXPRS && mFootprint.bytes() <= MAX_CACHED_BYTES;
+    }
+
+    /**
+     * Arrange for trimExprCache() to run if we are over MAX_CACHED_EXPRS or MAX_CACHED_BYTES.
+     * Callable from any thread.
+     */
+    private void checkCacheLimits() {
+        if (!withinCacheLimits()) {
+            scheduleTrim();
+        }
+    }
+
+    /**
+     * Evict least recently used mResultCache entries, and then least recently used expressions,
+     * until we are within MAX_CACHED_EXPRS and MAX_CACHED_BYTES, or nothing else can be evicted.
+     * mResultCache entries go first, since they only allow identical expressions to share
+     * values.  Runs on the UI thread, only after checkCacheLimits() found us over a limit.
+     */
+    private void trimExprCache() {
+        mTrimPending.set(false);
+        while (mFootprint.bytes() > MAX_CACHED_BYTES) {
+            if (!mResultCache.removeEldest()) {
+                break;
+            }
+        }
+        if (withinCacheLimits()) {
+            return;
+        }
+        final ArrayList<Map.Entry<Long, ExprInfo>> candidates =
+                new ArrayList<Map.Entry<Long, ExprInfo>>();
+        for (Map.Entry<Long, ExprInfo> entry : mExprs.entrySet()) {
+            final ExprInfo ei = entry.getValue();
+            if (ei.mCharged && isEvictable(entry.getKey(), ei)) {
+                candidates.add(entry);
+            }
+        }
+        // Access times may change concurrently.  Sort by the ones we saw.
+        final int count = candidates.size();
+        final long[] lastAccess = new long[count];
+        final Integer[] order = new Integer[count];
+        for (int i = 0; i < count; ++i) {
+            lastAccess[i] = candidates.get(i).getValue().mLastAccess;
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                return Long.compare(lastAccess[i1], lastAccess[i2]);
+            }
+        });
+        for (int i : order) {
+            if (withinCacheLimits()) {
+                break;
+            }
+            final Map.Entry<Long, ExprInfo> entry = candidates.get(i);
+            if (mExprs.remove(entry.getKey(), entry.getValue())) {
+                discharge(entry.getValue());
+            }
+        }
     }
 
     @Override
@@ -1827,12 +2491,25 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
 
     @Override
     public UnifiedReal getResult(long index) {
-        return ensureExprIsCached(index).mVal.get();
+        final ExprInfo ei = ensureExprIsCached(index);
+        final UnifiedReal result = ei.mVal.get();
+        if (result != null || ei == mMainExpr) {
+            return result;
+        }
+        final ResultCache.Entry cached = mResultCache.get(getCacheKey(ei));
+        return cached == null ? null : putResultIfAbsent(index, cached.mVal);
     }
 
     @Override
     public UnifiedReal putResultIfAbsent(long index, UnifiedReal result) {
-        ExprInfo ei = mExprs.get(index);
+        // The entry may have been evicted since getExpr().  That's OK; we just put the value into
+        // a fresh copy.
+        ExprInfo ei = ensureExprIsCached(index);
+        if (ei != mMainExpr) {
+            // Share the value with any identical expression.
+            result = mResultCache.putValue(getCacheKey(ei), result);
+            checkCacheLimits();
+        }
         if (ei.mVal.compareAndSet(null, result)) {
             return result;
         } else {
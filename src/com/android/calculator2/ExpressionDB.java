@@ -479,6 +479,15 @@ public class ExpressionDB {
      * to complete.
      */
     public long addRow(boolean negativeIndex, RowData data) {
+        final long start = EvaluationMetrics.start();
+        try {
+            return addRowUntimed(negativeIndex, data);
+        } finally {
+            EvaluationMetrics.stop(EvaluationMetrics.TIMER_DB_ADD_ROW, start);
+        }
+    }
+
+    private long addRowUntimed(boolean negativeIndex, RowData data) {
         long result;
         long newIndex;
         waitForDBInitialized();
@@ -563,6 +572,15 @@ public class ExpressionDB {
      * This makes sense, since we cache it anyway. And we should always cache recently added data.
      */
     public RowData getRow(long index) {
+        final long start = EvaluationMetrics.start();
+        try {
+            return getRowUntimed(index);
+        } finally {
+            EvaluationMetrics.stop(EvaluationMetrics.TIMER_DB_GET_ROW, start);
+        }
+    }
+
+    private RowData getRowUntimed(long index) {
         waitForDBInitialized();
         if (!inAccessibleRange(index)) {
             // Even if something went wrong opening or writing the database, we should
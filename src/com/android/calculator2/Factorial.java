@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Exact factorials, using Luschny's prime swing algorithm.
+ *
+ * n! is the product of its odd part and 2^(n - bitCount(n)).  The odd part is computed as
+ * oddFactorial(n) = oddFactorial(n/2)^2 * oddSwing(n), where the swing n! / (n/2)!^2 is
+ * assembled from its prime factorization: the exponent of an odd prime p is the number of odd
+ * values among n/p, n/p^2, ..., rounded down.  This needs far fewer multiplications than
+ * multiplying 1 through n, and the operands are more balanced.  The factors of each swing are
+ * multiplied in a balanced product tree, whose large subtrees run in parallel on the
+ * EvaluationPool.
+ *
+ * Work is charged to, and cancellation checked against, the EvaluationContext of the calling
+ * thread, including in the pool threads.
+ */
+final class Factorial {
+    // Product trees with more leaves than this are split between pool threads.
+    private static final int PARALLEL_LEAVES = 64;
+    // Leaves are multiplied one by one below this number.
+    private static final int SEQUENTIAL_LEAVES = 16;
+    private static final double LOG2_E = Math.log(Math.E) / Math.log(2.0);
+
+    private Factorial() {}
+
+    /**
+     * Return a lower bound on log2(n!), by Stirling's approximation.
+     */
+    static double minLog2(double n) {
+        return n < 2.0 ? 0.0 : n * (Math.log(n) / Math.log(2.0) - LOG2_E);
+    }
+
+    /**
+     * Return a lower bound on the work factorial(n) charges, for real n >= 0 no larger than the
+     * argument.  That of squaring the odd part of (n/2)!, which has at least
+     * log2((n/2)!) - n/2 bits.  The final multiplication by the swing is much less balanced.
+     * Monotonic in n.
+     */
+    static double minWork(double n) {
+        if (n < 3.0) {
+            return 0.0;
+        }
+        final double half = Math.floor(n / 2.0);
+        final double halfBits = Math.max(minLog2(half) - half, 0.0);
+        return EvaluationContext.multiplyWork(halfBits, halfBits);
+    }
+
+    /**
+     * Return n!.
+     * Throws ArithmeticException if the result would be too big to represent, and
+     * EvaluationContext.BudgetExceededException if the largest squaring alone would
+     * exceed the current budget.  The latter is checked before doing any work.
+     * @param n argument, >= 0
+     */
+    static BigInteger factorial(int n) {
+        if (minLog2(n) >= Integer.MAX_VALUE) {
+            throw new ArithmeticException("Factorial argument too big");
+        }
+        EvaluationContext.checkAvailable(minWork(n));
+        final BitSet composite = oddCompositeSieve(n);
+        return oddFactorial(n, composite).shiftLeft(n - Integer.bitCount(n));
+    }
+
+    /**
+     * Return a set containing i iff 2i + 1 <= n is an odd composite number.
+     */
+    private static BitSet oddCompositeSieve(int n) {
+        final BitSet composite = new BitSet(n / 2 + 1);
+        for (long p = 3; p * p <= n; p += 2) {
+            if (!composite.get((int) (p >> 1))) {
+                for (long m = p * p; m <= n; m += 2 * p) {
+                    composite.set((int) (m >> 1));
+                }
+            }
+        }
+        EvaluationContext.checkCancelled();
+        return composite;
+    }
+
+    /**
+     * Return the odd part of n!.
+     */
+    private static BigInteger oddFactorial(int n, BitSet composite) {
+        if (n < 3) {
+            return BigInteger.ONE;
+        }
+        final BigInteger half = oddFactorial(n / 2, composite);
+        final BigInteger swing = product(oddSwingFactors(n, composite));
+        EvaluationContext.chargeMultiply(half.bitLength(), half.bitLength());
+        final BigInteger square = half.multiply(half);
+        EvaluationContext.chargeMultiply(square.bitLength(), swing.bitLength());
+        return square.multiply(swing);
+    }
+
+    /**
+     * Return factors whose product is the odd part of n! / (n/2)!^2.  Prime powers are
+     * packed into longs, to keep the product tree small.
+     */
+    private static long[] oddSwingFactors(int n, BitSet composite) {
+        long[] factors = new long[16];
+        int count = 0;
+        long current = 1;
+        for (int p = 3; p <= n && p > 0; p += 2) {
+            if (composite.get(p >> 1)) {
+                continue;
+            }
+            long primePower = 1;  // At most n, since p^k <= n for every factor p included.
+            for (int q = n / p; q > 0; q /= p) {
+                if ((q & 1) != 0) {
+                    primePower *= p;
+                }
+            }
+            if (primePower == 1) {
+                continue;
+            }
+            if (current > Long.MAX_VALUE / primePower) {
+                if (count == factors.length) {
+                    factors = Arrays.copyOf(factors, 2 * count);
+                }
+                factors[count++] = current;
+                current = primePower;
+            } else {
+                current *= primePower;
+            }
+        }
+        if (count == factors.length) {
+            factors = Arrays.copyOf(factors, count + 1);
+        }
+        factors[count++] = current;
+        return Arrays.copyOf(factors, count);
+    }
+
+    /**
+     * Return the product of the given factors, in parallel if there are many.
+     */
+    private static BigInteger product(long[] factors) {
+        if (factors.length > PARALLEL_LEAVES) {
+            return EvaluationPool.get().invoke(
+                    new ProductTask(factors, 0, factors.length, EvaluationContext.current()));
+        }
+        return product(factors, 0, factors.length);
+    }
+
+    /**
+     * Return the product of factors[from] through factors[to - 1], as a balanced tree.
+     */
+    private static BigInteger product(long[] factors, int from, int to) {
+        if (to - from <= SEQUENTIAL_LEAVES) {
+            BigInteger result = BigInteger.valueOf(factors[from]);
+            for (int i = from + 1; i < to; ++i) {
+                result = result.multiply(BigInteger.valueOf(factors[i]));
+            }
+            EvaluationContext.checkCancelled();
+            return result;
+        }
+        final int mid = (from + to) >>> 1;
+        final BigInteger left = product(factors, from, mid);
+        final BigInteger right = product(factors, mid, to);
+        EvaluationContext.chargeMultiply(left.bitLength(), right.bitLength());
+        return left.multiply(right);
+    }
+
+    /**
+     * A product() computation in the pool.  Runs in the EvaluationContext of the thread that
+     * created it, so that it shares the evaluation's budget and cancellation.
+     */
+    private static class ProductTask extends RecursiveTask<BigInteger> {
+        private final long[] mFactors;
+        private final int mFrom;
+        private final int mTo;
+        private final EvaluationContext mEvalContext;
+
+        ProductTask(long[] factors, int from, int to, EvaluationContext ec) {
+            mFactors = factors;
+            mFrom = from;
+            mTo = to;
+            mEvalContext = ec;
+        }
+
+        @Override
+        protected BigInteger compute() {
+            final EvaluationContext previous = mEvalContext.attach();
+            try {
+                if (mTo - mFrom <= PARALLEL_LEAVES) {
+                    return product(mFactors, mFrom, mTo);
+                }
+                final int mid = (mFrom + mTo) >>> 1;
+                final ProductTask left = new ProductTask(mFactors, mFrom, mid, mEvalContext);
+                left.fork();
+                final BigInteger right =
+                        new ProductTask(mFactors, mid, mTo, mEvalContext).compute();
+                final BigInteger leftResult = left.join();
+                EvaluationContext.chargeMultiply(leftResult.bitLength(), right.bitLength());
+                return leftResult.multiply(right);
+            } finally {
+                mEvalContext.detach(previous);
+            }
+        }
+    }
+}
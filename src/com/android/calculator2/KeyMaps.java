@@ -457,6 +457,11 @@ public class KeyMaps {
 
     private static char mPiChar;
 
+    /**
+     * Result string for ConstantRegistry.E_CHAR, the name of e in exact results.
+     */
+    private static String sConstE;
+
     /**
      * Character used as a placeholder for digits that are currently unknown in a result that
      * is being computed.  We initially generate blanks, and then use this as a replacement
@@ -474,10 +479,16 @@ public class KeyMaps {
     private static HashMap<String, Integer> sKeyValForFun;
 
     /**
-     * Result string corresponding to a character in the calculator result.
-     * The string values in the map are expected to be one character long.
+     * Result string corresponding to a character in the calculator result, indexed by the
+     * character, so that translation neither boxes characters nor hashes.  Null for characters
+     * that should not appear.  Only ASCII characters are translated; the others we expect in a
+     * result are listed in UNTRANSLATED_RESULT_CHARS.
+     * The strings in the table are expected to be one character long.
      */
-    private static HashMap<Character, String> sOutputForResultChar;
+    private static String[] sOutputForResultChar;
+    private static final int OUTPUT_TABLE_SIZE = 128;
+    private static final String UNTRANSLATED_RESULT_CHARS =
+            ELLIPSIS + "\u221A\u03C0";  // SQUARE ROOT, GREEK SMALL LETTER PI
 
     /**
      * Locale corresponding to preceding map and character constants.
@@ -527,9 +538,13 @@ public class KeyMaps {
             case 'e':
             case 'E':
                 return R.id.const_e;
+            case ConstantRegistry.E_CHAR:
+                return R.id.const_e;
             case 'p':
             case 'P':
                 return R.id.const_pi;
+            case '\u221A': // SQUARE ROOT
+                return R.id.op_sqrt;
             case '^':
                 return R.id.op_pow;
             case '!':
@@ -564,7 +579,7 @@ public class KeyMaps {
      */
     static void addButtonToOutputMap(char c, int button_id) {
         Button button = (Button)mActivity.findViewById(button_id);
-        sOutputForResultChar.put(c, button.getText().toString());
+        sOutputForResultChar[c] = button.getText().toString();
     }
 
     /**
@@ -608,24 +623,24 @@ public class KeyMaps {
             if (piString.length() == 1) {
                 mPiChar = piString.charAt(0);
             }
+            sConstE = res.getString(R.string.const_e);
 
-            sOutputForResultChar = new HashMap<Character, String>();
-            sOutputForResultChar.put('e', "E");
-            sOutputForResultChar.put('E', "E");
-            sOutputForResultChar.put(' ', String.valueOf(CHAR_DIGIT_UNKNOWN));
-            sOutputForResultChar.put(ELLIPSIS.charAt(0), ELLIPSIS);
+            sOutputForResultChar = new String[OUTPUT_TABLE_SIZE];
+            sOutputForResultChar['e'] = "E";
+            sOutputForResultChar['E'] = "E";
+            sOutputForResultChar[' '] = String.valueOf(CHAR_DIGIT_UNKNOWN);
             // Translate numbers for fraction display, but not the separating slash, which appears
-            // to be universal.  We also do not translate the ln, sqrt, pi
-            sOutputForResultChar.put('/', "/");
-            sOutputForResultChar.put('(', "(");
-            sOutputForResultChar.put(')', ")");
-            sOutputForResultChar.put('l', "l");
-            sOutputForResultChar.put('n', "n");
-            sOutputForResultChar.put(',',
-                    String.valueOf(DecimalFormatSymbols.getInstance().getGroupingSeparator()));
-            sOutputForResultChar.put('\u221A', "\u221A"); // SQUARE ROOT
-            sOutputForResultChar.put('\u03C0', "\u03C0"); // GREEK SMALL LETTER PI
+            // to be universal.  We also do not translate the ln, sqrt, pi, or ellipsis.
+            sOutputForResultChar['/'] = "/";
+            sOutputForResultChar['('] = "(";
+            sOutputForResultChar[')'] = ")";
+            sOutputForResultChar['l'] = "l";
+            sOutputForResultChar['n'] = "n";
+            sOutputForResultChar[','] =
+                    String.valueOf(DecimalFormatSymbols.getInstance().getGroupingSeparator());
             addButtonToOutputMap('-', R.id.op_sub);
+            // Exact results may be sums of constants.
+            addButtonToOutputMap('+', R.id.op_add);
             addButtonToOutputMap('.', R.id.dec_point);
             for (int i = 0; i <= 9; ++i) {
                 addButtonToOutputMap((char)('0' + i), keyForDigVal(i));
@@ -662,22 +677,35 @@ public class KeyMaps {
      */
     public static String translateResult(String s) {
         StringBuilder result = new StringBuilder();
+        translateResult(s, result);
+        return result.toString();
+    }
+
+    /**
+     * Append the localization of s, as for translateResult(String), to result.
+     * Does not allocate, other than to grow result.
+     * Callable only from UI thread.
+     */
+    public static void translateResult(CharSequence s, StringBuilder result) {
         int len = s.length();
         validateMaps();
         for (int i = 0; i < len; ++i) {
             char c = s.charAt(i);
             if (i < len - 1 || c != 'e') {
-                String translation = sOutputForResultChar.get(c);
-                if (translation == null) {
+                String translation = c < OUTPUT_TABLE_SIZE ? sOutputForResultChar[c] : null;
+                if (translation != null) {
+                    result.append(translation);
+                } else if (c == ConstantRegistry.E_CHAR) {
+                    result.append(sConstE);
+                } else if (UNTRANSLATED_RESULT_CHARS.indexOf(c) != -1) {
+                    result.append(c);
+                } else {
                     // Should not get here.  Report if we do.
                     Log.v("Calculator", "Bad character:" + c);
-                    result.append(String.valueOf(c));
-                } else {
-                    result.append(translation);
+                    result.append(c);
                 }
             }
         }
-        return result.toString();
     }
 
 }
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import com.hp.creals.CR;
+
+import java.math.BigInteger;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A constructive real that is a sum of nonzero rational multiples of distinct basis constants.
+ * The basis constants are 1, pi, e, square roots of square-free integers, and natural logs of
+ * primes, all as interned by ConstantRegistry.  UnifiedReal uses these as mCrFactors for sums
+ * that would otherwise be opaque, so that they remain exact.
+ *
+ * 1, pi, the square roots and the logs are linearly independent over the rationals.  (By
+ * Baker's theorem, 1, i pi = ln(-1) and the logs of primes are linearly independent over the
+ * algebraic numbers, since i pi and the logs are independent over the rationals.  And square
+ * roots of distinct square-free integers are independent over the rationals.)  The same holds
+ * for 1, e and the square roots, since e is transcendental.  But it is unknown whether e is a
+ * rational combination of pi and logs.  Thus a sum of terms is zero iff all coefficients are
+ * zero, unless it involves both e and pi or a log.  We call such term sets "decidable", and
+ * only represent decidable sums with at least two terms.  Thus a LinearCombination is never
+ * zero, and is irrational.
+ *
+ * Term sets are represented as TreeMaps from basis CRs to coefficients, in display order.
+ */
+final class LinearCombination extends CR {
+    private final CR[] mBasis;
+    private final BoundedRational[] mCoefficients;
+    private final boolean mAlgebraic;
+    private final CR mValue;
+
+    private static final Comparator<CR> BASIS_ORDER = new Comparator<CR>() {
+        @Override
+        public int compare(CR a, CR b) {
+            return Long.compare(sortKey(a), sortKey(b));
+        }
+    };
+
+    private static long sortKey(CR cr) {
+        return cr == CR.ONE ? -1 : ConstantRegistry.sortKey(cr);
+    }
+
+    /**
+     * Create a LinearCombination with the given terms.
+     * @param terms decidable set of at least two terms, with nonzero coefficients
+     */
+    LinearCombination(TreeMap<CR, BoundedRational> terms) {
+        final int n = terms.size();
+        mBasis = new CR[n];
+        mCoefficients = new BoundedRational[n];
+        boolean algebraic = true;
+        CR value = null;
+        int i = 0;
+        for (Map.Entry<CR, BoundedRational> term : terms.entrySet()) {
+            final CR b = term.getKey();
+            mBasis[i] = b;
+            mCoefficients[i] = term.getValue();
+            algebraic &= b == CR.ONE || ConstantRegistry.squareOf(b) != 0;
+            final CR t = b == CR.ONE ? term.getValue().crValue()
+                    : term.getValue().crValue().multiply(b);
+            value = value == null ? t : value.add(t);
+            ++i;
+        }
+        mAlgebraic = algebraic;
+        mValue = value;
+    }
+
+    @Override
+    protected BigInteger approximate(int p) {
+        return mValue.get_appr(p);
+    }
+
+    int size() {
+        return mBasis.length;
+    }
+
+    CR basis(int i) {
+        return mBasis[i];
+    }
+
+    BoundedRational coefficient(int i) {
+        return mCoefficients[i];
+    }
+
+    /**
+     * Is this known to be algebraic, i.e. a combination of square roots and 1?
+     * Otherwise it is transcendental.
+     */
+    boolean isAlgebraic() {
+        return mAlgebraic;
+    }
+
+    /**
+     * Is cr a basis constant, or a registered constant that can be expressed in terms of them?
+     */
+    private static boolean isExpressible(CR cr) {
+        return cr == CR.ONE || cr instanceof LinearCombination || ConstantRegistry.isRegistered(cr);
+    }
+
+    /**
+     * Add r * b to terms.  Return false if the coefficient became too big to represent.
+     */
+    private static boolean addTerm(TreeMap<CR, BoundedRational> terms, CR b, BoundedRational r) {
+        final BoundedRational old = terms.get(b);
+        final BoundedRational sum = old == null ? r : BoundedRational.add(old, r);
+        if (sum == null) {
+            return false;
+        }
+        if (sum.signum() == 0) {
+            terms.remove(b);
+        } else {
+            terms.put(b, sum);
+        }
+        return true;
+    }
+
+    /**
+     * Add rat * cr to terms.  Return false if that's not representable.
+     */
+    private static boolean addTerms(TreeMap<CR, BoundedRational> terms, BoundedRational rat,
+            CR cr) {
+        if (rat.signum() == 0) {
+            return true;
+        }
+        if (cr instanceof LinearCombination) {
+            final LinearCombination lc = (LinearCombination) cr;
+            for (int i = 0; i < lc.mBasis.length; ++i) {
+                final BoundedRational r = BoundedRational.multiply(rat, lc.mCoefficients[i]);
+                if (r == null || !addTerm(terms, lc.mBasis[i], r)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        long n = ConstantRegistry.expOf(cr);
+        if (n == 0) {
+            return addTerm(terms, cr, rat);
+        }
+        // Split the log of n into logs of its prime factors.
+        for (long p = 2; n > 1; ++p) {
+            if (p * p > n) {
+                p = n;
+            }
+            int e = 0;
+            while (n % p == 0) {
+                n /= p;
+                ++e;
+            }
+            if (e != 0) {
+                final BoundedRational r = BoundedRational.multiply(rat, new BoundedRational(e));
+                if (r == null || !addTerm(terms, ConstantRegistry.ln(p), r)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the terms of r1 * cr1 + r2 * cr2, or null if we can't express that as a sum of
+     * basis constants.  The result may not be decidable.
+     */
+    static TreeMap<CR, BoundedRational> sum(BoundedRational r1, CR cr1, BoundedRational r2,
+            CR cr2) {
+        if (!isExpressible(cr1) || !isExpressible(cr2)) {
+            return null;
+        }
+        final TreeMap<CR, BoundedRational> terms = new TreeMap<>(BASIS_ORDER);
+        if (!addTerms(terms, r1, cr1) || !addTerms(terms, r2, cr2)) {
+            return null;
+        }
+        return terms;
+    }
+
+    /**
+     * Can we tell whether the sum of terms is zero, i.e. are the basis constants known to be
+     * linearly independent?
+     */
+    static boolean isDecidable(TreeMap<CR, BoundedRational> terms) {
+        if (!terms.containsKey(ConstantRegistry.E)) {
+            return true;
+        }
+        for (CR b : terms.keySet()) {
+            if (b == ConstantRegistry.PI || ConstantRegistry.expOf(b) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
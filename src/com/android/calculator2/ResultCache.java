@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A bounded cache of evaluation results, keyed by expression content rather than by expression
+ * index.  Evaluator keeps one value per index; this lets different indices holding the same
+ * expression, e.g. an expression that was typed twice, share a single UnifiedReal value and the
+ * longest decimal string computed for it.
+ *
+ * Keys are the serialized expression (CalculatorExpr.toBytes()) plus the degree mode.
+ * Embedded expressions are serialized as references to their index.  That's safe, since
+ * expressions at those indices never change.  But indices may be reused after the history is
+ * cleared, and the cache must be cleared at that point.
+ *
+ * Entries are evicted in least-recently-used order, once there are too many of them, or their
+ * approximate size exceeds MAX_BYTES.  The size of a value is estimated from the precision of
+ * its most precise result string, since its CRs cache approximations to about that precision.
+ * Entries are also counted in a Footprint shared with Evaluator, which may evict them first when
+ * the combined size of its expressions and this cache gets too large.  All methods are
+ * thread-safe.
+ */
+class ResultCache {
+
+    // Maximum number of cached results.
+    private static final int MAX_ENTRIES = 64;
+    // Maximum total approximate size of cached results.
+    private static final long MAX_BYTES = 1000000;
+    // Rough size of a UnifiedReal with its CR graph, excluding cached approximations.
+    static final int VALUE_BYTES = 1000;
+    // Rough number of CRs in a value's graph that cache approximations about as precise as the
+    // value's result string.
+    private static final int PRECISE_APPROXIMATIONS = 4;
+    private static final double BYTES_PER_DIGIT = 0.4153;  // log2(10) / 8
+
+    /**
+     * Identifies the value of an expression.  Immutable.
+     */
+    static final class Key {
+        private final byte[] mBytes;
+        private final boolean mDegreeMode;
+        private final int mHash;
+
+        private Key(byte[] bytes, boolean degreeMode) {
+            mBytes = bytes;
+            mDegreeMode = degreeMode;
+            mHash = 31 * Arrays.hashCode(bytes) + (degreeMode ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            final Key o = (Key) other;
+            return mHash == o.mHash && mDegreeMode == o.mDegreeMode
+                    && Arrays.equals(mBytes, o.mBytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+    }
+
+    /**
+     * Return the key for the given expression.  The expression should not be modified while
+     * we're looking at it.
+     */
+    static Key keyFor(CalculatorExpr expr, boolean degreeMode) {
+        // Degree mode only matters if there are trig functions.
+        return new Key(expr.toBytes(), degreeMode && expr.hasTrigFuncs());
+    }
+
+    /**
+     * A cached result.  Immutable.
+     */
+    static final class Entry {
+        public final UnifiedReal mVal;
+        // Decimal representation computed to mResultStringOffset digits, or null.
+        // As for Evaluator.ExprInfo.mResultString.
+        public final DigitBuffer mResultString;
+        public final int mResultStringOffset;
+
+        // Approximate size of the value and result string.
+        final long mBytes;
+
+        Entry(UnifiedReal val, DigitBuffer resultString, int resultStringOffset) {
+            mVal = val;
+            mResultString = resultString;
+            mResultStringOffset = resultStringOffset;
+            mBytes = valueBytes(resultString, resultStringOffset)
+                    + (resultString == null ? 0 : resultString.storageBytes());
+        }
+    }
+
+    /**
+     * Return the approximate size of a value whose most precise result string is resultString,
+     * computed to resultStringOffset digits.  Counts the approximations cached by its CRs, but
+     * not the result string itself.
+     * @param resultString the result string, or null if there is none
+     */
+    static long valueBytes(DigitBuffer resultString, int resultStringOffset) {
+        if (resultString == null) {
+            return VALUE_BYTES;
+        }
+        final int dotIndex = resultString.getDotIndex();
+        final int wholeDigits = dotIndex < 0 ? resultString.length() : dotIndex;
+        final int digits = wholeDigits + Math.max(resultStringOffset, 0);
+        return VALUE_BYTES + (long) (PRECISE_APPROXIMATIONS * BYTES_PER_DIGIT * digits);
+    }
+
+    /**
+     * A running total of the approximate memory used by the holders of results, i.e. by
+     * ResultCache entries and Evaluator's cached expressions.  Values and result string storage
+     * may be shared between holders, and are counted once, as long as some holder refers to
+     * them.  Holders are added and removed as their results change, so that checking the total
+     * is cheap.  All methods are thread-safe.
+     */
+    static final class Footprint {
+        // Size of each counted object, and the number of holders referring to it.
+        private final IdentityHashMap<Object, long[]> mCounted =
+                new IdentityHashMap<Object, long[]>();
+        private long mBytes;  // Total size of holders and counted objects.
+
+        private void addObject(Object obj, long size) {
+            if (obj == null) {
+                return;
+            }
+            final long[] info = mCounted.get(obj);
+            if (info == null) {
+                mCounted.put(obj, new long[] { size, 1 });
+                mBytes += size;
+            } else {
+                if (size > info[0]) {
+                    // Another holder shows the value was evaluated more precisely.
+                    mBytes += size - info[0];
+                    info[0] = size;
+                }
+                ++info[1];
+            }
+        }
+
+        private void removeObject(Object obj) {
+            final long[] info = obj == null ? null : mCounted.get(obj);
+            if (info != null && --info[1] == 0) {
+                mCounted.remove(obj);
+                mBytes -= info[0];
+            }
+        }
+
+        /**
+         * Add a holder of size ownBytes, referring to val and resultString.
+         */
+        synchronized void add(long ownBytes, UnifiedReal val, DigitBuffer resultString,
+                int resultStringOffset) {
+            mBytes += ownBytes;
+            addObject(val, valueBytes(resultString, resultStringOffset));
+            if (resultString != null) {
+                addObject(resultString.storageKey(), resultString.storageBytes());
+            }
+        }
+
+        /**
+         * Remove a holder previously added with the same arguments.
+         */
+        synchronized void remove(long ownBytes, UnifiedReal val, DigitBuffer resultString) {
+            mBytes -= ownBytes;
+            removeObject(val);
+            if (resultString != null) {
+                removeObject(resultString.storageKey());
+            }
+        }
+
+        synchronized long bytes() {
+            return mBytes;
+        }
+
+        synchronized void clear() {
+            mCounted.clear();
+            mBytes = 0;
+        }
+    }
+
+    private final Footprint mFootprint;
+
+    ResultCache(Footprint footprint) {
+        mFootprint = footprint;
+    }
+
+    // Protected by this.
+    private final LinkedHashMap<Key, Entry> mEntries =
+            new LinkedHashMap<Key, Entry>(16, 0.75f, true /* access order */);
+    // Sum of mBytes over mEntries.  Protected by this.
+    private long mBytes;
+
+    /**
+     * Add or replace the entry for key, and evict least recently used entries other than that
+     * one until we are within MAX_ENTRIES and MAX_BYTES.
+     */
+    private void put(Key key, Entry entry) {
+        final Entry old = mEntries.put(key, entry);
+        mFootprint.add(0, entry.mVal, entry.mResultString, entry.mResultStringOffset);
+        mBytes += entry.mBytes;
+        if (old != null) {
+            removed(old);
+        }
+        final Iterator<Entry> it = mEntries.values().iterator();
+        while ((mEntries.size() > MAX_ENTRIES || mBytes > MAX_BYTES) && mEntries.size() > 1) {
+            removed(it.next());
+            it.remove();
+        }
+    }
+
+    /**
+     * Account for the removal of entry from mEntries.
+     */
+    private void removed(Entry entry) {
+        mFootprint.remove(0, entry.mVal, entry.mResultString);
+        mBytes -= entry.mBytes;
+    }
+
+    /**
+     * Return the cached result for key, or null.
+     */
+    public synchronized Entry get(Key key) {
+        final Entry result = mEntries.get(key);
+        EvaluationMetrics.count(result == null ? EvaluationMetrics.COUNT_RESULT_CACHE_MISSES
+                : EvaluationMetrics.COUNT_RESULT_CACHE_HITS);
+        return result;
+    }
+
+    /**
+     * Record the value for key.  An existing value is kept, so that all users share the same
+     * UnifiedReal, and thus its cached approximations.
+     * @return the cached value
+     */
+    public synchronized UnifiedReal putValue(Key key, UnifiedReal val) {
+        final Entry old = mEntries.get(key);
+        if (old != null) {
+            return old.mVal;
+        }
+        put(key, new Entry(val, null, 0));
+        return val;
+    }
+
+    /**
+     * Record a decimal representation for key, unless we already have a more precise one.
+     */
+    public synchronized void putResultString(Key key, UnifiedReal val, DigitBuffer resultString,
+            int resultStringOffset) {
+        final Entry old = mEntries.get(key);
+        if (old != null && old.mResultString != null
+                && old.mResultStringOffset >= resultStringOffset) {
+            return;
+        }
+        put(key, new Entry(old == null ? val : old.mVal, resultString, resultStringOffset));
+    }
+
+    /**
+     * Remove the least recently used entry.
+     * @return false if there was none
+     */
+    public synchronized boolean removeEldest() {
+        final Iterator<Entry> it = mEntries.values().iterator();
+        if (!it.hasNext()) {
+            return false;
+        }
+        removed(it.next());
+        it.remove();
+        return true;
+    }
+
+    public synchronized void clear() {
+        for (Entry entry : mEntries.values()) {
+            mFootprint.remove(0, entry.mVal, entry.mResultString);
+        }
+        mEntries.clear();
+        mBytes = 0;
+    }
+}
@@ -41,7 +41,7 @@ public class StringUtils {
      * at least somewhat acceptable, though not necessarily preferred, everywhere.
      * The grouping separator in the result is NOT localized.
      */
-    public static String addCommas(String s, int begin, int end) {
+    public static String addCommas(CharSequence s, int begin, int end) {
         // Resist the temptation to use Java's NumberFormat, which converts to long or double
         // and hence doesn't handle very large numbers.
         StringBuilder result = new StringBuilder();
@@ -60,6 +60,37 @@ public class StringUtils {
         return result.toString();
     }
 
+    /**
+     * Add commas every three digits to the range [begin, end) of s, in place, as addCommas()
+     * does.  Unlike addCommas(), characters outside the range are preserved.  Does not allocate
+     * once s has sufficient capacity.
+     * @return the number of commas inserted
+     */
+    public static int insertCommas(StringBuilder s, int begin, int end) {
+        int current = begin;
+        while (current < end && (s.charAt(current) == '-' || s.charAt(current) == ' ')) {
+            ++current;
+        }
+        final int nCommas = end - current > 0 ? (end - current - 1) / 3 : 0;
+        if (nCommas == 0) {
+            return 0;
+        }
+        final int oldLen = s.length();
+        s.setLength(oldLen + nCommas);
+        for (int i = oldLen - 1; i >= end; --i) {
+            s.setCharAt(i + nCommas, s.charAt(i));
+        }
+        // Move digits right, starting at the right, inserting a comma after every third one.
+        int dest = end + nCommas - 1;
+        for (int i = end - 1; i >= current; --i) {
+            s.setCharAt(dest--, s.charAt(i));
+            if ((end - i) % 3 == 0 && i != current) {
+                s.setCharAt(dest--, ',');
+            }
+        }
+        return nCommas;
+    }
+
     /**
      * Ignoring all occurrences of c in both strings, check whether old is a prefix of new.
      * If so, return the remaining subsequence of whole. If not, return null.
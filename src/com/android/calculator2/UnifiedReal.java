@@ -17,6 +17,9 @@
 package com.android.calculator2;
 
 import java.math.BigInteger;
+import java.util.Map;
+import java.util.TreeMap;
+
 import com.hp.creals.CR;
 import com.hp.creals.UnaryCRFunction;
 
@@ -88,50 +91,13 @@ public class UnifiedReal {
     private final static BigInteger BIG_24 = BigInteger.valueOf(24);
     private final static int DEFAULT_COMPARE_TOLERANCE = -1000;
 
-    // Well-known CR constants we try to use in the mCrFactor position:
+    // Well-known CR constants we try to use in the mCrFactor position.  Others are interned by
+    // ConstantRegistry.
     private final static CR CR_ONE = CR.ONE;
-    private final static CR CR_PI = CR.PI;
-    private final static CR CR_E = CR.ONE.exp();
-    private final static CR CR_SQRT2 = CR.valueOf(2).sqrt();
-    private final static CR CR_SQRT3 = CR.valueOf(3).sqrt();
-    private final static CR CR_LN2 = CR.valueOf(2).ln();
-    private final static CR CR_LN3 = CR.valueOf(3).ln();
-    private final static CR CR_LN5 = CR.valueOf(5).ln();
-    private final static CR CR_LN6 = CR.valueOf(6).ln();
-    private final static CR CR_LN7 = CR.valueOf(7).ln();
-    private final static CR CR_LN10 = CR.valueOf(10).ln();
-
-    // Square roots that we try to recognize.
-    // We currently recognize only a small fixed collection, since the sqrt() function needs to
-    // identify numbers of the form <SQRT[i]>*n^2, and we don't otherwise know of a good
-    // algorithm for that.
-    private final static CR sSqrts[] = {
-            null,
-            CR.ONE,
-            CR_SQRT2,
-            CR_SQRT3,
-            null,
-            CR.valueOf(5).sqrt(),
-            CR.valueOf(6).sqrt(),
-            CR.valueOf(7).sqrt(),
-            null,
-            null,
-            CR.valueOf(10).sqrt() };
-
-    // Natural logs of small integers that we try to recognize.
-    private final static CR sLogs[] = {
-            null,
-            null,
-            CR_LN2,
-            CR_LN3,
-            null,
-            CR_LN5,
-            CR_LN6,
-            CR_LN7,
-            null,
-            null,
-            CR_LN10 };
-
+    private final static CR CR_PI = ConstantRegistry.PI;
+    private final static CR CR_E = ConstantRegistry.E;
+    private final static CR CR_SQRT2 = ConstantRegistry.sqrt(2);
+    private final static CR CR_SQRT3 = ConstantRegistry.sqrt(3);
 
     // Some convenient UnifiedReal constants.
     public static final UnifiedReal PI = new UnifiedReal(CR_PI);
@@ -159,32 +125,27 @@ public class UnifiedReal {
 
     /**
      * Given a constructive real cr, try to determine whether cr is the square root of
-     * a small integer.  If so, return its square as a BoundedRational.  Otherwise return null.
-     * We make this determination by simple table lookup, so spurious null returns are
-     * entirely possible, or even likely.
+     * an integer.  If so, return its square as a BoundedRational.  Otherwise return null.
+     * We make this determination by looking cr up in ConstantRegistry, so spurious null
+     * returns are entirely possible, or even likely.
      */
     private static BoundedRational getSquare(CR cr) {
-        for (int i = 0; i < sSqrts.length; ++i) {
-             if (sSqrts[i] == cr) {
-                return new BoundedRational(i);
-             }
+        if (cr == CR_ONE) {
+            return BoundedRational.ONE;
         }
-        return null;
+        final long square = ConstantRegistry.squareOf(cr);
+        return square == 0 ? null : new BoundedRational(square);
     }
 
     /**
-     * Given a constructive real cr, try to determine whether cr is the square root of
-     * a small integer.  If so, return its square as a BoundedRational.  Otherwise return null.
-     * We make this determination by simple table lookup, so spurious null returns are
-     * entirely possible, or even likely.
+     * Given a constructive real cr, try to determine whether cr is the natural log of
+     * an integer.  If so, return its exponential as a BoundedRational.  Otherwise return null.
+     * We make this determination by looking cr up in ConstantRegistry, so spurious null
+     * returns are entirely possible.
      */
-    private BoundedRational getExp(CR cr) {
-        for (int i = 0; i < sLogs.length; ++i) {
-             if (sLogs[i] == cr) {
-                return new BoundedRational(i);
-             }
-        }
-        return null;
+    private static BoundedRational getExp(CR cr) {
+        final long exp = ConstantRegistry.expOf(cr);
+        return exp == 0 ? null : new BoundedRational(exp);
     }
 
     /**
@@ -199,52 +160,32 @@ public class UnifiedReal {
         if (cr == CR_ONE) {
             return "";
         }
-        if (cr == CR_PI) {
-            return "\u03C0";   // GREEK SMALL LETTER PI
-        }
-        if (cr == CR_E) {
-            return "e";
-        }
-        for (int i = 0; i < sSqrts.length; ++i) {
-            if (cr == sSqrts[i]) {
-                return "\u221A" /* SQUARE ROOT */ + i;
-            }
-        }
-        for (int i = 0; i < sLogs.length; ++i) {
-            if (cr == sLogs[i]) {
-                return "ln(" + i + ")";
-            }
-        }
-        return null;
+        return ConstantRegistry.name(cr);
     }
 
     /**
      * Would crName() return non-Null?
      */
     private static boolean isNamed(CR cr) {
-        if (cr == CR_ONE || cr == CR_PI || cr == CR_E) {
-            return true;
-        }
-        for (CR r: sSqrts) {
-            if (cr == r) {
-                return true;
-            }
-        }
-        for (CR r: sLogs) {
-            if (cr == r) {
-                return true;
-            }
-        }
-        return false;
+        return cr == CR_ONE || ConstantRegistry.isRegistered(cr);
+    }
+
+    /**
+     * Is cr named, or a LinearCombination of named constants?  Either way, it is known to be
+     * nonzero, and to be irrational unless it is CR_ONE.
+     */
+    private static boolean isNamedOrSum(CR cr) {
+        return isNamed(cr) || cr instanceof LinearCombination;
     }
 
     /**
      * Is cr known to be algebraic (as opposed to transcendental)?
      * Currently only produces meaningful results for the above known special
-     * constructive reals.
+     * constructive reals, and LinearCombinations of them.
      */
     private static boolean definitelyAlgebraic(CR cr) {
-        return cr == CR_ONE || getSquare(cr) != null;
+        return cr == CR_ONE || getSquare(cr) != null
+                || cr instanceof LinearCombination && ((LinearCombination) cr).isAlgebraic();
     }
 
     /**
@@ -260,7 +201,7 @@ public class UnifiedReal {
      * could cover many more cases.  Whether that matters in practice is TBD.
      */
     public boolean definitelyIrrational() {
-        return !definitelyRational() && isNamed(mCrFactor);
+        return !definitelyRational() && isNamedOrSum(mCrFactor);
     }
 
     /**
@@ -274,7 +215,7 @@ public class UnifiedReal {
      * Is this number known to be transcendental?
      */
     public boolean definitelyTranscendental() {
-        return !definitelyAlgebraic() && isNamed(mCrFactor);
+        return !definitelyAlgebraic() && isNamedOrSum(mCrFactor);
     }
 
 
@@ -290,14 +231,14 @@ public class UnifiedReal {
         // are in our set of special known CRs, can have a solution.
         // This cannot happen if one is CR_ONE and the other is not.
         // (Since all others are irrational.)
-        // This cannot happen for two named square roots, which have no repeated factors.
+        // This cannot happen for two named square roots, which are of square-free integers.
         // (To see this, square both sides of the equation and factor.  Each prime
         // factor in the numerator and denominator occurs twice.)
         // This cannot happen for e or pi on one side, and a square root on the other.
         // (One is transcendental, the other is algebraic.)
         // This cannot happen for two of our special natural logs.
         // (Otherwise ln(m) = (a/b)ln(n) ==> m = n^(a/b) ==> m^b = n^a, which is impossible
-        // because either m or n includes a prime factor not shared by the other.)
+        // for distinct m and n, since neither is a perfect power.)
         // This cannot happen for a log and a square root.
         // (The Lindemann-Weierstrass theorem tells us, among other things, that if
         // a is algebraic, then exp(a) is transcendental.  Thus if l in our finite
@@ -336,14 +277,11 @@ public class UnifiedReal {
         }
         String name = crName(mCrFactor);
         if (name != null) {
-            BigInteger bi = BoundedRational.asBigInteger(mRatFactor);
-            if (bi != null) {
-                if (bi.equals(BigInteger.ONE)) {
-                    return name;
-                }
-                return mRatFactor.toNiceString() + name;
-            }
-            return "(" + mRatFactor.toNiceString() + ")" + name;
+            return niceTerm(mRatFactor, name);
+        }
+        final String sum = niceSum();
+        if (sum != null) {
+            return sum;
         }
         if (mRatFactor.equals(BoundedRational.ONE)) {
             return mCrFactor.toString();
@@ -351,11 +289,55 @@ public class UnifiedReal {
         return crValue().toString();
     }
 
+    /**
+     * Return a readable representation of r times the named constant with the given name.
+     */
+    private static String niceTerm(BoundedRational r, String name) {
+        if (name.isEmpty()) {
+            return r.toNiceString();
+        }
+        BigInteger bi = BoundedRational.asBigInteger(r);
+        if (bi != null) {
+            if (bi.equals(BigInteger.ONE)) {
+                return name;
+            }
+            if (bi.equals(BigInteger.ONE.negate())) {
+                return "-" + name;
+            }
+            return r.toNiceString() + name;
+        }
+        return "(" + r.toNiceString() + ")" + name;
+    }
+
+    /**
+     * If mCrFactor is a LinearCombination, return a readable representation of this as a sum.
+     * Otherwise, or if a coefficient becomes too big, return null.
+     */
+    private String niceSum() {
+        if (!(mCrFactor instanceof LinearCombination)) {
+            return null;
+        }
+        final LinearCombination lc = (LinearCombination) mCrFactor;
+        final StringBuilder result = new StringBuilder();
+        for (int i = 0; i < lc.size(); ++i) {
+            final BoundedRational r = BoundedRational.multiply(mRatFactor, lc.coefficient(i));
+            if (r == null) {
+                return null;
+            }
+            final String term = niceTerm(r, crName(lc.basis(i)));
+            if (i != 0 && term.charAt(0) != '-') {
+                result.append('+');
+            }
+            result.append(term);
+        }
+        return result.toString();
+    }
+
     /**
      * Will toNiceString() produce an exact representation?
      */
     public boolean exactlyDisplayable() {
-        return crName(mCrFactor) != null;
+        return crName(mCrFactor) != null || niceSum() != null;
     }
 
     // Number of extra bits used in evaluation below to prefer truncation to rounding.
@@ -371,10 +353,19 @@ public class UnifiedReal {
      * @param n result precision, >= 0
      */
     public String toStringTruncated(int n) {
+        final long start = EvaluationMetrics.start();
+        try {
+            return toStringTruncatedUntimed(n);
+        } finally {
+            EvaluationMetrics.stop(EvaluationMetrics.TIMER_TO_STRING, start);
+        }
+    }
+
+    private String toStringTruncatedUntimed(int n) {
         if (mCrFactor == CR_ONE || mRatFactor == BoundedRational.ZERO) {
             return mRatFactor.toStringTruncated(n);
         }
-        final CR scaled = CR.valueOf(BigInteger.TEN.pow(n)).multiply(crValue());
+        final CR scaled = CR.valueOf(DecimalConverter.pow10(n)).multiply(crValue());
         boolean negative = false;
         BigInteger intScaled;
         if (exactlyTruncatable()) {
@@ -396,14 +387,7 @@ public class UnifiedReal {
             }
             intScaled = intScaled.shiftRight(EXTRA_PREC);
         }
-        String digits = intScaled.toString();
-        int len = digits.length();
-        if (len < n + 1) {
-            digits = StringUtils.repeat('0', n + 1 - len) + digits;
-            len = n + 1;
-        }
-        return (negative ? "-" : "") + digits.substring(0, len - n) + "."
-                + digits.substring(len - n);
+        return DecimalConverter.toStringScaled(intScaled, negative, n);
     }
 
     /*
@@ -440,9 +424,10 @@ public class UnifiedReal {
         // We check for ONE only to speed up the common case.
         // The use of a tolerance here means we can spuriously return false, not true.
         return mCrFactor == u.mCrFactor
-                && (isNamed(mCrFactor) || mCrFactor.signum(DEFAULT_COMPARE_TOLERANCE) != 0)
+                && (isNamedOrSum(mCrFactor) || mCrFactor.signum(DEFAULT_COMPARE_TOLERANCE) != 0)
                 || mRatFactor.signum() == 0 && u.mRatFactor.signum() == 0
                 || definitelyIndependent(mCrFactor, u.mCrFactor)
+                || decidableDifference(u) != null
                 || crValue().compareTo(u.crValue(), DEFAULT_COMPARE_TOLERANCE) != 0;
     }
 
@@ -457,7 +442,12 @@ public class UnifiedReal {
             int signum = mCrFactor.signum();  // Can diverge if mCRFactor == 0.
             return signum * mRatFactor.compareTo(u.mRatFactor);
         }
-        return crValue().compareTo(u.crValue());  // Can also diverge.
+        final TreeMap<CR, BoundedRational> difference = decidableDifference(u);
+        if (difference != null && difference.isEmpty()) {
+            return 0;
+        }
+        // Can also diverge, but not if difference is non-null.
+        return crValue().compareTo(u.crValue());
     }
 
     /**
@@ -516,6 +506,10 @@ public class UnifiedReal {
      * Performs no approximate evaluation.
      */
     public boolean definitelyNotEquals(UnifiedReal u) {
+        final TreeMap<CR, BoundedRational> difference = decidableDifference(u);
+        if (difference != null) {
+            return !difference.isEmpty();
+        }
         boolean isNamed = isNamed(mCrFactor);
         boolean uIsNamed = isNamed(u.mCrFactor);
         if (isNamed && uIsNamed) {
@@ -546,7 +540,7 @@ public class UnifiedReal {
      * evaluation?
      */
     public boolean definitelyNonZero() {
-        return isNamed(mCrFactor) && mRatFactor.signum() != 0;
+        return isNamedOrSum(mCrFactor) && mRatFactor.signum() != 0;
     }
 
     public boolean definitelyOne() {
@@ -585,9 +579,78 @@ public class UnifiedReal {
         if (u.definitelyZero()) {
             return this;
         }
+        final TreeMap<CR, BoundedRational> terms =
+                LinearCombination.sum(mRatFactor, mCrFactor, u.mRatFactor, u.mCrFactor);
+        if (terms != null && LinearCombination.isDecidable(terms)) {
+            return fromTerms(terms);
+        }
         return new UnifiedReal(crValue().add(u.crValue()));
     }
 
+    /**
+     * Return the terms of this - u, if both are sums of multiples of basis constants, and we
+     * can tell whether the difference is zero.  Otherwise return null.
+     */
+    private TreeMap<CR, BoundedRational> decidableDifference(UnifiedReal u) {
+        final TreeMap<CR, BoundedRational> terms = LinearCombination.sum(mRatFactor, mCrFactor,
+                BoundedRational.negate(u.mRatFactor), u.mCrFactor);
+        return terms != null && LinearCombination.isDecidable(terms) ? terms : null;
+    }
+
+    /**
+     * Return the sum of the given decidable terms.
+     */
+    private static UnifiedReal fromTerms(TreeMap<CR, BoundedRational> terms) {
+        if (terms.isEmpty()) {
+            return ZERO;
+        }
+        if (terms.size() == 1) {
+            final Map.Entry<CR, BoundedRational> term = terms.firstEntry();
+            return new UnifiedReal(term.getValue(), term.getKey());
+        }
+        final UnifiedReal log = logOfProduct(terms);
+        if (log != null) {
+            return log;
+        }
+        return new UnifiedReal(new LinearCombination(terms));
+    }
+
+    /**
+     * If the terms are all integer multiples of logs with the same sign, return them as a
+     * multiple of a single log, e.g. ln(6) for ln(2) + ln(3).  Return null if that's not
+     * possible, or the log is not registered.
+     */
+    private static UnifiedReal logOfProduct(TreeMap<CR, BoundedRational> terms) {
+        BigInteger gcd = BigInteger.ZERO;
+        int sign = 0;
+        for (Map.Entry<CR, BoundedRational> term : terms.entrySet()) {
+            final BigInteger c = BoundedRational.asBigInteger(term.getValue());
+            if (c == null || ConstantRegistry.expOf(term.getKey()) == 0
+                    || sign != 0 && c.signum() != sign) {
+                return null;
+            }
+            sign = c.signum();
+            gcd = gcd.gcd(c);
+        }
+        long n = 1;
+        for (Map.Entry<CR, BoundedRational> term : terms.entrySet()) {
+            final long p = ConstantRegistry.expOf(term.getKey());
+            final BigInteger k = BoundedRational.asBigInteger(term.getValue()).divide(gcd).abs();
+            if (k.bitLength() > 31) {
+                return null;
+            }
+            for (int i = k.intValue(); i > 0; --i) {
+                n *= p;
+                if (n > ConstantRegistry.MAX_LN_ARG) {
+                    return null;
+                }
+            }
+        }
+        // The exponents have no common factor, so n is not a perfect power.
+        final BigInteger multiplier = sign < 0 ? gcd.negate() : gcd;
+        return new UnifiedReal(new BoundedRational(multiplier), ConstantRegistry.ln(n));
+    }
+
     public UnifiedReal negate() {
         return new UnifiedReal(BoundedRational.negate(mRatFactor), mCrFactor);
     }
@@ -671,18 +734,23 @@ public class UnifiedReal {
 
     public UnifiedReal sqrt() {
         if (mCrFactor == CR_ONE) {
-            BoundedRational ratSqrt;
-            // Check for all arguments of the form <perfect rational square> * small_int,
-            // where small_int has a known sqrt.  This includes the small_int = 1 case.
-            for (int divisor = 1; divisor < sSqrts.length; ++divisor) {
-                if (sSqrts[divisor] != null) {
-                    ratSqrt = BoundedRational.sqrt(
-                            BoundedRational.divide(mRatFactor, new BoundedRational(divisor)));
+            // Check for arguments of the form <perfect rational square> * f, where f is a
+            // square-free integer.  This includes the f = 1 case.
+            if (mRatFactor.signum() > 0) {
+                final long f = BoundedRational.squareFreePart(mRatFactor);
+                final CR crSqrt = f == 1 ? CR_ONE : ConstantRegistry.sqrt(f);
+                if (crSqrt != null) {
+                    final BoundedRational ratSqrt = BoundedRational.sqrt(
+                            BoundedRational.divide(mRatFactor, new BoundedRational(f)));
                     if (ratSqrt != null) {
-                        return new UnifiedReal(ratSqrt, sSqrts[divisor]);
+                        return new UnifiedReal(ratSqrt, crSqrt);
                     }
                 }
             }
+            final BoundedRational ratSqrt = BoundedRational.sqrt(mRatFactor);
+            if (ratSqrt != null) {
+                return new UnifiedReal(ratSqrt);
+            }
         }
         return new UnifiedReal(crValue().sqrt());
     }
@@ -867,31 +935,33 @@ public class UnifiedReal {
     private static final BigInteger BIG_TWO = BigInteger.valueOf(2);
 
     /**
-     * Compute an integral power of a constrive real, using the standard recursive algorithm.
-     * exp is known to be positive.
+     * Compute an integral power of a constructive real, by left-to-right binary exponentiation.
+     * exp is known to be positive.  The result is a CR expression of depth about twice
+     * exp.bitLength(), whose evaluation recurses correspondingly deeply.
      */
-    private static CR recursivePow(CR base, BigInteger exp) {
-        if (exp.equals(BigInteger.ONE)) {
-            return base;
-        }
-        if (exp.and(BigInteger.ONE).intValue() == 1) {
-            return base.multiply(recursivePow(base, exp.subtract(BigInteger.ONE)));
-        }
-        CR tmp = recursivePow(base, exp.shiftRight(1));
-        if (Thread.interrupted()) {
-            throw new CR.AbortedException();
+    private static CR iterativePow(CR base, BigInteger exp) {
+        CR result = base;
+        for (int i = exp.bitLength() - 2; i >= 0; --i) {
+            // CR multiplication is lazy; the real work is done later, during approximation.
+            EvaluationContext.chargeIterations(1);
+            result = result.multiply(result);
+            if (exp.testBit(i)) {
+                result = result.multiply(base);
+            }
         }
-        return tmp.multiply(tmp);
+        return result;
     }
 
     /**
      * Compute an integral power of this.
-     * This recurses roughly as deeply as the number of bits in the exponent, and can, in
-     * ridiculous cases, result in a stack overflow.
+     * Huge exponents fail by exceeding the EvaluationContext budget, or with an
+     * ArithmeticException if the exact result could not be represented.
+     * @param maxExactBits Approximate rational powers whose exact representation would need
+     *        more than this many bits, rather than computing them exactly.
      */
-    private UnifiedReal pow(BigInteger exp) {
+    private UnifiedReal pow(BigInteger exp, long maxExactBits) {
         if (exp.signum() < 0) {
-            return pow(exp.negate()).inverse();
+            return pow(exp.negate(), maxExactBits).inverse();
         }
         if (exp.equals(BigInteger.ONE)) {
             return this;
@@ -901,13 +971,16 @@ public class UnifiedReal {
             // so we do the same.
             return ONE;
         }
-        if (mCrFactor == CR_ONE) {
+        // Rough size of an exact result.  Only compared against maxExactBits.
+        final boolean exactOK = maxExactBits == Long.MAX_VALUE
+                || exp.doubleValue() * mRatFactor.representationBits() <= maxExactBits;
+        if (mCrFactor == CR_ONE && exactOK) {
             final BoundedRational ratPow = mRatFactor.pow(exp);
             if (ratPow != null) {
-                return new UnifiedReal(mRatFactor.pow(exp));
+                return new UnifiedReal(ratPow);
             }
         }
-        BoundedRational square = getSquare(mCrFactor);
+        BoundedRational square = exactOK ? getSquare(mCrFactor) : null;
         if (square != null) {
             final BoundedRational nRatFactor =
                     BoundedRational.multiply(mRatFactor.pow(exp), square.pow(exp.shiftRight(1)));
@@ -920,25 +993,40 @@ public class UnifiedReal {
                 }
             }
         }
-        if (signum(DEFAULT_COMPARE_TOLERANCE) > 0) {
-            // Safe to take the log. This avoids deep recursion for huge exponents, which
+        final int sign = signum(DEFAULT_COMPARE_TOLERANCE);
+        if (sign > 0) {
+            // Safe to take the log. This avoids deep CR expressions for huge exponents, which
             // may actually make sense here.
             return new UnifiedReal(crValue().ln().multiply(CR.valueOf(exp)).exp());
+        } else if (sign < 0) {
+            // Known negative base with integer exponent.  Do the same for the absolute value,
+            // and adjust the sign.
+            final UnifiedReal absPow =
+                    new UnifiedReal(crValue().negate().ln().multiply(CR.valueOf(exp)).exp());
+            return exp.testBit(0) ? absPow.negate() : absPow;
         } else {
-            // Possibly negative base with integer exponent. Use a recursive computation.
-            // (Another possible option would be to use the absolute value of the base, and then
-            // adjust the sign at the end.  But that would have to be done in the CR
-            // implementation.)
-            return new UnifiedReal(recursivePow(crValue(), exp));
+            // Base is zero or extremely close to it; we can't take the log.
+            return new UnifiedReal(iterativePow(crValue(), exp));
         }
     }
 
     public UnifiedReal pow(UnifiedReal expon) {
+        return pow(expon, Long.MAX_VALUE);
+    }
+
+    /**
+     * Raise this to the given power.
+     * Integral powers of rationals are normally computed exactly, no matter how large.
+     * If that would need more than roughly maxExactBits bits, we instead approximate the result.
+     * This is useful when a static estimate showed the exact computation to be hopeless, but the
+     * result may still be small enough to display, e.g. 1/2^(10^9).
+     */
+    public UnifiedReal pow(UnifiedReal expon, long maxExactBits) {
         if (mCrFactor == CR_E) {
             if (mRatFactor.equals(BoundedRational.ONE)) {
                 return expon.exp();
             } else {
-                UnifiedReal ratPart = new UnifiedReal(mRatFactor).pow(expon);
+                UnifiedReal ratPart = new UnifiedReal(mRatFactor).pow(expon, maxExactBits);
                 return expon.exp().multiply(ratPart);
             }
         }
@@ -946,67 +1034,84 @@ public class UnifiedReal {
         if (expAsBR != null) {
             BigInteger expAsBI = BoundedRational.asBigInteger(expAsBR);
             if (expAsBI != null) {
-                return pow(expAsBI);
+                return pow(expAsBI, maxExactBits);
             } else {
                 // Check for exponent that is a multiple of a half.
                 expAsBI = BoundedRational.asBigInteger(
                         BoundedRational.multiply(BoundedRational.TWO, expAsBR));
                 if (expAsBI != null) {
-                    return pow(expAsBI).sqrt();
+                    return pow(expAsBI, maxExactBits).sqrt();
                 }
             }
         }
         return new UnifiedReal(crValue().ln().multiply(expon.crValue()).exp());
     }
 
+    private static final double LN_2 = Math.log(2.0);
+    // 2^61 - 1, a prime.
+    private static final BigInteger BIG_PRIME =
+            BigInteger.ONE.shiftLeft(61).subtract(BigInteger.ONE);
+
     /**
-     * Raise the argument to the 16th power.
+     * Return log2(n), for n > 0, accurate to a few ulps.
      */
-    private static long pow16(int n) {
-        if (n > 10) {
-            throw new AssertionError("Unexpexted pow16 argument");
-        }
-        long result = n*n;
-        result *= result;
-        result *= result;
-        result *= result;
-        return result;
+    private static double log2(BigInteger n) {
+        final int shift = Math.max(n.bitLength() - 62, 0);
+        return shift + Math.log(n.shiftRight(shift).doubleValue()) / LN_2;
     }
 
     /**
-     * Return the integral log with respect to the given base if it exists, 0 otherwise.
-     * n is presumed positive.
+     * Return the integral log with respect to the given base if it exists, -1 otherwise.
+     * n is presumed positive, and base > 1.
      */
-    private static long getIntLog(BigInteger n, int base) {
-        double nAsDouble = n.doubleValue();
-        double approx = Math.log(nAsDouble)/Math.log(base);
-        // A relatively quick test first.
-        // Unfortunately, this doesn't help for values to big to fit in a Double.
-        if (!Double.isInfinite(nAsDouble) && Math.abs(approx - Math.rint(approx)) > 1.0e-6) {
-            return 0;
+    private static long getIntLog(BigInteger n, long base) {
+        final double approx = log2(n) * LN_2 / Math.log(base);
+        final long result = Math.round(approx);
+        // A relatively quick test first.  The tolerance allows for rounding errors in approx.
+        if (result > Integer.MAX_VALUE || Math.abs(approx - result) > 1.0e-9 * (result + 1)) {
+            return -1;
         }
-        long result = 0;
-        BigInteger remaining = n;
-        BigInteger bigBase = BigInteger.valueOf(base);
-        BigInteger base16th = null;  // base^16, computed lazily
-        while (n.mod(bigBase).signum() == 0) {
-            if (Thread.interrupted()) {
-                throw new CR.AbortedException();
+        // Compare modulo a prime, which is much cheaper than computing the power.
+        final BigInteger bigBase = BigInteger.valueOf(base);
+        if (!bigBase.modPow(BigInteger.valueOf(result), BIG_PRIME).equals(n.mod(BIG_PRIME))) {
+            return -1;
+        }
+        EvaluationContext.chargeMultiply(n.bitLength() / 2, n.bitLength() / 2);
+        return bigBase.pow((int) result).equals(n) ? result : -1;
+    }
+
+    /**
+     * Return the smallest base <= maxBase of which n is an integral power, or 0 if there is
+     * none.  Such a base is not itself a perfect power.  n is presumed > 1.
+     */
+    private static long getIntBase(BigInteger n, long maxBase) {
+        final double log2n = log2(n);
+        final int twos = n.getLowestSetBit();
+        final long maxK = (long) log2n + 1;
+        // Smaller exponents would need a base > maxBase.  Each remaining exponent is cheap to
+        // try, but for a huge n there are about as many as it has bits.
+        final long minK = Math.max(1, (long) (log2n * LN_2 / Math.log(maxBase + 0.5)));
+        EvaluationContext.chargeIterations(maxK - minK + 1);
+        long lastBase = 0;
+        // Try exponents from largest to smallest, i.e. bases from smallest to largest.
+        // Consecutive large exponents often give the same base, which we check only once.
+        for (long k = maxK; k >= 1; --k) {
+            if (twos % k != 0) {
+                // The base would have twos / k factors of two.
+                continue;
             }
-            n = n.divide(bigBase);
-            ++result;
-            // And try a slightly faster computation for large n:
-            if (base16th == null) {
-                base16th = BigInteger.valueOf(pow16(base));
+            final double root = Math.pow(2.0, log2n / k);
+            if (root > maxBase + 0.5) {
+                break;
             }
-            while (n.mod(base16th).signum() == 0) {
-                n = n.divide(base16th);
-                result += 16;
+            final long base = Math.round(root);
+            if (base >= 2 && base != lastBase && Math.abs(root - base) <= 1.0e-6) {
+                lastBase = base;
+                if (getIntLog(n, base) == k) {
+                    return base;
+                }
             }
         }
-        if (n.equals(BigInteger.ONE)) {
-            return result;
-        }
         return 0;
     }
 
@@ -1026,30 +1131,25 @@ public class UnifiedReal {
             final BigInteger bi = BoundedRational.asBigInteger(mRatFactor);
             if (bi != null) {
                 if (mCrFactor == CR_ONE) {
-                    // Check for a power of a small integer.  We can use sLogs[] to return
+                    // Check for a power of an integer whose log we can name.  We can return
                     // a more useful answer for those.
-                    for (int i = 0; i < sLogs.length; ++i) {
-                        if (sLogs[i] != null) {
-                            long intLog = getIntLog(bi, i);
-                            if (intLog != 0) {
-                                return new UnifiedReal(new BoundedRational(intLog), sLogs[i]);
-                            }
-                        }
+                    final long base = getIntBase(bi, ConstantRegistry.MAX_LN_ARG);
+                    if (base != 0) {
+                        return new UnifiedReal(new BoundedRational(getIntLog(bi, base)),
+                                ConstantRegistry.ln(base));
                     }
                 } else {
                     // Check for n^k * sqrt(n), for which we can also return a more useful answer.
-                    BoundedRational square = getSquare(mCrFactor);
-                    if (square != null) {
-                        int intSquare = square.intValue();
-                        if (sLogs[intSquare] != null) {
-                            long intLog = getIntLog(bi, intSquare);
-                            if (intLog != 0) {
-                                BoundedRational nRatFactor =
-                                        BoundedRational.add(new BoundedRational(intLog),
-                                        BoundedRational.HALF);
-                                if (nRatFactor != null) {
-                                    return new UnifiedReal(nRatFactor, sLogs[intSquare]);
-                                }
+                    // N is square-free, and hence not a perfect power.
+                    final long square = ConstantRegistry.squareOf(mCrFactor);
+                    final CR crLn = ConstantRegistry.ln(square);
+                    if (crLn != null) {
+                        final long intLog = getIntLog(bi, square);
+                        if (intLog >= 0) {
+                            final BoundedRational nRatFactor = BoundedRational.add(
+                                    new BoundedRational(intLog), BoundedRational.HALF);
+                            if (nRatFactor != null) {
+                                return new UnifiedReal(nRatFactor, crLn);
                             }
                         }
                     }
@@ -1093,35 +1193,6 @@ public class UnifiedReal {
     }
 
 
-    /**
-     * Generalized factorial.
-     * Compute n * (n - step) * (n - 2 * step) * etc.  This can be used to compute factorial a bit
-     * faster, especially if BigInteger uses sub-quadratic multiplication.
-     */
-    private static BigInteger genFactorial(long n, long step) {
-        if (n > 4 * step) {
-            BigInteger prod1 = genFactorial(n, 2 * step);
-            if (Thread.interrupted()) {
-                throw new CR.AbortedException();
-            }
-            BigInteger prod2 = genFactorial(n - step, 2 * step);
-            if (Thread.interrupted()) {
-                throw new CR.AbortedException();
-            }
-            return prod1.multiply(prod2);
-        } else {
-            if (n == 0) {
-                return BigInteger.ONE;
-            }
-            BigInteger res = BigInteger.valueOf(n);
-            for (long i = n - step; i > 1; i -= step) {
-                res = res.multiply(BigInteger.valueOf(i));
-            }
-            return res;
-        }
-    }
-
-
     /**
      * Factorial function.
      * Fails if argument is clearly not an integer.
@@ -1138,11 +1209,13 @@ public class UnifiedReal {
         if (asBI.signum() < 0) {
             throw new ArithmeticException("Negative factorial argument");
         }
-        if (asBI.bitLength() > 20) {
-            // Will fail.  LongValue() may not work. Punt now.
+        if (asBI.bitLength() > 31) {
+            // Result has more than 2^35 bits.  IntValue() may not work. Punt now.
             throw new ArithmeticException("Factorial argument too big");
         }
-        BigInteger biResult = genFactorial(asBI.longValue(), 1);
+        // The work budget, checked by Factorial, and the cost estimate for the expression
+        // determine how large an argument we actually try.
+        BigInteger biResult = Factorial.factorial(asBI.intValue());
         BoundedRational nRatFactor = new BoundedRational(biResult);
         return new UnifiedReal(nRatFactor);
     }